@@ -0,0 +1,94 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cloudlens.block.BlockEngine;
+import cloudlens.block.BlockObject;
+import cloudlens.block.FieldPath;
+import cloudlens.block.JSEngine;
+import cloudlens.block.LazyEntry;
+
+// The per-entry cost of testing and reading a field of an entry, as a when
+// clause or match upon does: splitting the path and walking it with
+// checkpath/getpath versus a FieldPath built once. Entries are lazy (fields
+// set by match rules) or JS objects (after a process block).
+//
+// java -cp target/classes:<dependencies> org.openjdk.jmh.Main FieldPath
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FieldPathBenchmark {
+  @Param({ "lazy", "object" })
+  public String entry;
+
+  @Param({ "entry.level", "entry.request.id", "entry.missing.id" })
+  public String path;
+
+  private BlockObject e;
+  private FieldPath field;
+
+  @Setup
+  public void setUp() {
+    final BlockEngine engine = new JSEngine();
+    final BlockObject request = engine
+        .eval("({ id: 'request 42', ms: 12 })");
+    if (entry.equals("lazy")) {
+      final LazyEntry lazy = new LazyEntry(engine,
+          "INFO [worker-3] request 42 completed in 12ms");
+      lazy.put("level", "INFO");
+      lazy.put("worker", "worker-3");
+      lazy.put("request", request.internalObject());
+      e = lazy;
+    } else {
+      e = engine.eval("({ message: 'INFO [worker-3] request 42 completed "
+          + "in 12ms', level: 'INFO', worker: 'worker-3' })");
+      e.put("request", request);
+    }
+    field = new FieldPath(path);
+  }
+
+  @Benchmark
+  public Object split() {
+    final String[] varpath = path.split("\\.");
+    return e.checkpath(varpath, 1) ? e.getpath(varpath, 1).internalObject()
+        : null;
+  }
+
+  @Benchmark
+  public Object precompiled() {
+    return field.test(e) ? field.read(e) : null;
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import cloudlens.parser.FileReader;
+
+// Line splitting throughput of a text log: Scanner (stdin, http) versus
+// memory-mapped files (local:, file: and -log), serially and split into byte
+// ranges read by several threads (-threads).
+//
+// java -cp target/classes:<dependencies> org.openjdk.jmh.Main LineReader
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LineReaderBenchmark {
+  @Param({ "1000000" })
+  public int lines;
+
+  @Param({ "4" })
+  public int threads;
+
+  private Path log;
+
+  @Setup
+  public void setUp() throws IOException {
+    log = Files.createTempFile("cloudlens-bench", ".log");
+    try (BufferedWriter w = Files.newBufferedWriter(log)) {
+      for (int i = 0; i < lines; i++) {
+        w.write("2018-03-12 10:21:" + (i % 60) + ".123 INFO [worker-"
+            + (i % 16) + "] com.ibm.cloudlens.Service - request " + i
+            + " completed in " + (i % 1000) + "ms\n");
+      }
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.delete(log);
+  }
+
+  private void consume(Iterator<String> it, Blackhole bh) {
+    while (it.hasNext()) {
+      bh.consume(it.next());
+    }
+  }
+
+  @Benchmark
+  public void scanner(Blackhole bh) throws IOException {
+    try (InputStream in = Files.newInputStream(log)) {
+      consume(FileReader.lines(in), bh);
+    }
+  }
+
+  @Benchmark
+  public void mapped(Blackhole bh) {
+    consume(FileReader.readLines(new String[] { log.toString() }), bh);
+  }
+
+  @Benchmark
+  public void parallel(Blackhole bh) {
+    consume(FileReader.readLines(new String[] { log.toString() }, threads),
+        bh);
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cloudlens.engine.CL;
+import cloudlens.engine.CLBuilder;
+import cloudlens.parser.ASTBuilder;
+import cloudlens.parser.ASTElement;
+import cloudlens.parser.FileReader;
+
+// Streaming a tests/good scenario, its log repeated up to the given number of
+// lines, through the pipeline iterator chain (batch 0) versus the batched
+// push executor (-batch).
+//
+// java -cp target/classes:<dependencies> org.openjdk.jmh.Main Pipeline
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PipelineBenchmark {
+  @Param({ "apples", "apples2", "color", "sustain", "decl1" })
+  public String scenario;
+
+  @Param({ "200000" })
+  public int lines;
+
+  @Param({ "0", "256" })
+  public int batch;
+
+  private Path log;
+  private CL cl;
+  private List<ASTElement> lens;
+
+  @Setup
+  public void setUp() throws IOException {
+    final List<String> sample = Files
+        .readAllLines(Paths.get("tests/good", scenario + ".log"));
+    log = Files.createTempFile("cloudlens-bench", ".log");
+    try (BufferedWriter w = Files.newBufferedWriter(log)) {
+      for (int i = 0; i < lines; i++) {
+        w.write(sample.get(i % sample.size()));
+        w.write('\n');
+      }
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.delete(log);
+  }
+
+  // a fresh engine and log stream for each run, outside of the measurement
+  @Setup(Level.Invocation)
+  public void prepare() throws Exception {
+    final OutputStream out = new NullOutputStream();
+    CLBuilder.reset();
+    cl = new CL(out, out, true, false);
+    cl.batch = batch;
+    cl.source(FileReader.readLines(new String[] { log.toString() }));
+    lens = ASTBuilder
+        .parseFiles(new String[] { "tests/good/" + scenario + ".lens" });
+  }
+
+  @Benchmark
+  public void run() {
+    cl.launch(lens);
+  }
+}
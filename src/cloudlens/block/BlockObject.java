@@ -31,6 +31,8 @@ public interface BlockObject {
 
   public boolean isMap();
 
+  public boolean isPlainObject();
+
   public Map<String, Object> asMap();
 
   public boolean isMapArray();
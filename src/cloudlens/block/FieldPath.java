@@ -0,0 +1,104 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.block;
+
+import java.util.Arrays;
+import java.util.Map;
+
+// A field path of an entry (e.g. entry.request.id), split once when the
+// pipeline is built. The fields are read from the lazy fields or the JS
+// maps directly, as checkpath and getpath do but without splitting the path,
+// wrapping each step or catching exceptions.
+public class FieldPath {
+  public final String path;
+  // the fields, without the entry name
+  private final String[] fields;
+  private static final Object MISSING = new Object();
+
+  public FieldPath(String path) {
+    this.path = path;
+    final String[] split = path.split("\\.");
+    this.fields = Arrays.copyOfRange(split, Math.min(1, split.length),
+        split.length);
+  }
+
+  // the path is the entry itself
+  public boolean isEntry() {
+    return fields.length == 0;
+  }
+
+  // the first field of the path (null for the entry itself)
+  public String field() {
+    return (fields.length > 0) ? fields[0] : null;
+  }
+
+  // the entry defines the field, as checkpath
+  public boolean test(BlockObject entry) {
+    final Object parent = parent(entry);
+    if (parent == MISSING) {
+      return false;
+    }
+    final String last = fields[fields.length - 1];
+    if (parent instanceof LazyEntry) {
+      return ((LazyEntry) parent).indexOf(last) >= 0;
+    }
+    return parent instanceof Map && ((Map<?, ?>) parent).containsKey(last);
+  }
+
+  // the value of the field, or null if the entry does not define it
+  public Object read(BlockObject entry) {
+    final Object parent = parent(entry);
+    if (parent == MISSING) {
+      return null;
+    }
+    final String last = fields[fields.length - 1];
+    if (parent instanceof LazyEntry) {
+      final LazyEntry lazy = (LazyEntry) parent;
+      final int i = lazy.indexOf(last);
+      return (i < 0) ? null : lazy.value(i);
+    }
+    return (parent instanceof Map) ? ((Map<?, ?>) parent).get(last) : null;
+  }
+
+  // the object holding the last field: a lazy entry or a map
+  private Object parent(BlockObject entry) {
+    if (fields.length == 0) {
+      return MISSING;
+    }
+    Object o = (entry instanceof LazyEntry && ((LazyEntry) entry).isLazy())
+        ? entry : entry.internalObject();
+    for (int i = 0; i < fields.length - 1; i++) {
+      if (o instanceof LazyEntry) {
+        final LazyEntry lazy = (LazyEntry) o;
+        final int j = lazy.indexOf(fields[i]);
+        o = (j < 0) ? null : lazy.value(j);
+      } else if (o instanceof Map) {
+        o = ((Map<?, ?>) o).get(fields[i]);
+      } else {
+        return MISSING;
+      }
+    }
+    return o;
+  }
+
+  @Override
+  public String toString() {
+    return path;
+  }
+}
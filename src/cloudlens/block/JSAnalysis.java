@@ -0,0 +1,607 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.block;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+// Whether a script may keep a reference to a log entry once the call that
+// got it returns: in a variable of the lens, in another object, in a
+// closure, ... A compact history encodes an entry when it leaves the
+// pipeline, and the entries returned by CL.log() when the history is read
+// again, so a change made later through such a reference would be lost.
+//
+// The analysis is conservative. A value is a reference unless it is known to
+// be primitive (a literal, the result of an operator, a field of the entry,
+// ...), or a local variable that only holds such values. A reference is kept
+// when it is assigned to a variable that is not local to a function (the
+// variables of a block are seen by the blocks that follow), to a property of
+// an object that is not a new local one, or passed to a call that may store
+// it, i.e. a method that is not known to leave its arguments alone. The
+// functions of the lens are analyzed themselves, so calling them is not.
+// The entries returned by CL.log() are encoded again by the next read of the
+// history: a script that reads it again while it may still hold the entries
+// of a read (assigned, returned, or read from a loop or a callback) keeps
+// them.
+public class JSAnalysis {
+  // calls that do not store their arguments
+  private static final Set<String> READERS = new HashSet<>(Arrays.asList(
+      "forEach", "map", "filter", "some", "every", "reduce", "reduceRight",
+      "find", "findIndex", "indexOf", "lastIndexOf", "includes", "join",
+      "slice", "concat", "sort", "toString", "toFixed", "hasOwnProperty",
+      "test", "exec", "match", "replace", "split", "search", "localeCompare",
+      "stringify", "keys", "max", "min"));
+  // calls that return a primitive value, or a new object without references
+  private static final Set<String> PRIMITIVES = new HashSet<>(Arrays.asList(
+      "parseInt", "parseFloat", "isNaN", "isFinite", "String", "Number",
+      "Boolean", "Date", "RegExp", "encodeURI", "encodeURIComponent",
+      "decodeURI", "decodeURIComponent", "escape", "unescape", "toString",
+      "toFixed", "toPrecision", "toLowerCase", "toUpperCase",
+      "toLocaleString", "trim", "substring", "substr", "charAt",
+      "charCodeAt", "indexOf", "lastIndexOf", "includes", "join", "test",
+      "match", "split", "replace", "search", "localeCompare", "getTime",
+      "toISOString", "hasOwnProperty", "stringify", "parse", "keys", "now",
+      "findRegex", "memory", "profile"));
+  // objects whose methods do not store their arguments
+  private static final Set<String> LIBRARIES = new HashSet<>(
+      Arrays.asList("Math", "JSON", "String", "Number", "Date", "RegExp"));
+  // functions that run code that is not analyzed
+  private static final Set<String> EVALS = new HashSet<>(
+      Arrays.asList("eval", "Function", "load", "loadWithNewGlobal"));
+
+  // the variables of a function
+  private static class Scope {
+    final Scope parent;
+    // the entry of a process block
+    final String entry;
+    final Set<String> locals = new HashSet<>();
+    // the locals that may hold a reference
+    final Set<String> references = new HashSet<>();
+    // the locals that may refer to an object seen from elsewhere
+    final Set<String> shared = new HashSet<>();
+
+    Scope(Scope parent, String entry) {
+      this.parent = parent;
+      this.entry = entry;
+    }
+  }
+
+  // the names of the functions that read the history, e.g. CL.log
+  private final Collection<String> readers;
+  private final Map<JsonObject, Scope> scopes = new IdentityHashMap<>();
+  // the function of a process or after block
+  private JsonObject top = null;
+  private boolean retains = false;
+  // a local may hold a reference since the last pass
+  private boolean changed;
+  // the value being visited is assigned or returned
+  private boolean holding = false;
+  private int reads;
+  // some reads are assigned or returned, or in a loop or nested function
+  private boolean held;
+  private boolean repeated;
+
+  private JSAnalysis(Collection<String> readers) {
+    this.readers = readers;
+  }
+
+  // the script of a block or a declaration, or the function of a process
+  // block of the given entry (null otherwise). The lenses are the names of
+  // the lenses that can be run from the script: they read the history.
+  public static boolean retains(String script, String entry,
+      Collection<String> lenses) {
+    final Set<String> readers = new HashSet<>(lenses);
+    readers.add("CL.log");
+    readers.add("CL.run");
+    final JSAnalysis analysis = new JSAnalysis(readers);
+    final JsonObject program = new JsonParser().parse(JSEngine.parse(script))
+        .getAsJsonObject();
+    final JsonArray body = program.getAsJsonArray("body");
+    if (body.size() == 1 && isFunction(statement(body.get(0)))
+        && child(statement(body.get(0)), "id") == null) {
+      analysis.top = statement(body.get(0));
+    }
+    do {
+      analysis.changed = false;
+      analysis.reads = 0;
+      analysis.visit(program, new Scope(null, null), entry, false);
+    } while (analysis.changed && !analysis.retains);
+    // the entries of a read that is kept are changed after the next one
+    return analysis.retains || analysis.reads > 1
+        && (analysis.held || analysis.repeated);
+  }
+
+  private static JsonObject statement(JsonElement e) {
+    final JsonObject s = e.getAsJsonObject();
+    return type(s).equals("ExpressionStatement")
+        ? s.getAsJsonObject("expression") : s;
+  }
+
+  private static String type(JsonObject node) {
+    return node.get("type").getAsString();
+  }
+
+  private static boolean isFunction(JsonObject node) {
+    final String type = type(node);
+    return type.equals("FunctionDeclaration")
+        || type.equals("FunctionExpression");
+  }
+
+  private static JsonObject child(JsonObject node, String name) {
+    final JsonElement e = node.get(name);
+    return (e != null && e.isJsonObject()) ? e.getAsJsonObject() : null;
+  }
+
+  // the name of a variable, or of a function such as CL.log
+  private static String name(JsonObject node) {
+    if (node == null) {
+      return null;
+    }
+    switch (type(node)) {
+    case "Identifier":
+      return node.get("name").getAsString();
+    case "MemberExpression":
+      final String object = name(child(node, "object"));
+      final String property = property(node);
+      return (object != null && property != null) ? object + "." + property
+          : null;
+    default:
+      return null;
+    }
+  }
+
+  // the name of a property, if known
+  private static String property(JsonObject member) {
+    final JsonElement p = member.get("property");
+    if (p.isJsonPrimitive()) {
+      return p.getAsString();
+    }
+    final JsonObject literal = p.getAsJsonObject();
+    return (type(literal).equals("Literal")
+        && literal.get("value").isJsonPrimitive())
+            ? literal.get("value").getAsString() : null;
+  }
+
+  // the object a member expression is a property of, e.g. a in a.b[0].c
+  private static JsonObject root(JsonObject node) {
+    while (type(node).equals("MemberExpression")) {
+      node = child(node, "object");
+    }
+    return node;
+  }
+
+  // the function declaring a variable, null if it is not local
+  private static Scope resolve(String name, Scope scope) {
+    for (Scope s = scope; s != null; s = s.parent) {
+      if (s.locals.contains(name)) {
+        return s;
+      }
+    }
+    return null;
+  }
+
+  private void reference(Scope scope, String name, boolean shared) {
+    changed |= scope.references.add(name);
+    changed |= shared && scope.shared.add(name);
+  }
+
+  private void visit(JsonElement e, Scope scope, String entry,
+      boolean nested) {
+    if (retains || e == null || e.isJsonNull()) {
+      return;
+    }
+    if (e.isJsonArray()) {
+      for (final JsonElement child : e.getAsJsonArray()) {
+        visit(child, scope, entry, nested);
+      }
+      return;
+    }
+    if (!e.isJsonObject()) {
+      return;
+    }
+    final JsonObject node = e.getAsJsonObject();
+    if (!node.has("type")) {
+      return;
+    }
+    switch (type(node)) {
+    case "FunctionDeclaration":
+    case "FunctionExpression":
+      function(node, scope, entry, nested);
+      return;
+    case "VariableDeclarator":
+      final JsonObject init = child(node, "init");
+      if (init != null && isReference(init, scope)) {
+        hold(init, scope, entry, nested);
+      } else {
+        visit(init, scope, entry, nested);
+      }
+      if (init != null) {
+        assign(child(node, "id"), init, scope);
+      }
+      return;
+    case "AssignmentExpression":
+      visit(node.get("left"), scope, entry, nested);
+      final JsonObject right = child(node, "right");
+      final boolean simple = node.get("operator").getAsString().equals("=");
+      if (simple && isReference(right, scope)) {
+        hold(right, scope, entry, nested);
+      } else {
+        visit(right, scope, entry, nested);
+      }
+      if (simple) {
+        assign(child(node, "left"), right, scope);
+      }
+      return;
+    case "ForInStatement":
+      // for each (v in a) assigns the values of a
+      if (node.get("each").getAsBoolean()) {
+        assign(child(node, "left"), child(node, "right"), scope);
+      }
+      visit(node.get("left"), scope, entry, nested);
+      visit(node.get("right"), scope, entry, nested);
+      visit(node.get("body"), scope, entry, true);
+      return;
+    case "ForStatement":
+    case "WhileStatement":
+    case "DoWhileStatement":
+      // the history read in a loop is read again before the loop ends
+      for (final Map.Entry<String, JsonElement> child : node.entrySet()) {
+        visit(child.getValue(), scope, entry, true);
+      }
+      return;
+    case "CallExpression":
+    case "NewExpression":
+      if (isRead(node)) {
+        reads++;
+        held |= holding;
+        repeated |= nested;
+        // read again before the entries kept are changed
+        retains |= holding && nested;
+      }
+      call(node, scope);
+      break;
+    case "ReturnStatement":
+      final JsonObject argument = child(node, "argument");
+      if (argument == null || !isReference(argument, scope)) {
+        break;
+      }
+      // a process block returns the entry that goes on
+      if (scope.entry != null && !scope.entry.equals(name(argument))) {
+        retains = true;
+      }
+      hold(argument, scope, entry, nested);
+      return;
+    case "WithStatement":
+      retains = true;
+      return;
+    default:
+      break;
+    }
+    for (final Map.Entry<String, JsonElement> child : node.entrySet()) {
+      visit(child.getValue(), scope, entry, nested);
+    }
+  }
+
+  private boolean isRead(JsonObject call) {
+    return type(call).equals("CallExpression")
+        && readers.contains(name(child(call, "callee")));
+  }
+
+  // visits a value that is assigned or returned
+  private void hold(JsonObject value, Scope scope, String entry,
+      boolean nested) {
+    final boolean h = holding;
+    holding = true;
+    visit(value, scope, entry, nested);
+    holding = h;
+  }
+
+  private void function(JsonObject fn, Scope outer, String entry,
+      boolean nested) {
+    final boolean isTop = fn == top;
+    Scope scope = scopes.get(fn);
+    if (scope == null) {
+      scope = new Scope(outer, isTop ? entry : null);
+      for (final JsonElement param : fn.getAsJsonArray("params")) {
+        final String name = name(param.getAsJsonObject());
+        scope.locals.add(name);
+        scope.references.add(name);
+        scope.shared.add(name);
+      }
+      scope.locals.add("arguments");
+      scope.references.add("arguments");
+      scope.shared.add("arguments");
+      declare(fn.get("body"), scope);
+      scopes.put(fn, scope);
+    }
+    final boolean h = holding;
+    holding = false;
+    visit(fn.get("body"), scope, entry, !isTop || nested);
+    holding = h;
+  }
+
+  // the variables and functions declared in the body of a function
+  private static void declare(JsonElement e, Scope scope) {
+    if (e == null || e.isJsonNull() || e.isJsonPrimitive()) {
+      return;
+    }
+    if (e.isJsonArray()) {
+      for (final JsonElement child : e.getAsJsonArray()) {
+        declare(child, scope);
+      }
+      return;
+    }
+    final JsonObject node = e.getAsJsonObject();
+    if (!node.has("type")) {
+      return;
+    }
+    switch (type(node)) {
+    case "FunctionDeclaration":
+      if (child(node, "id") != null) {
+        final String name = name(child(node, "id"));
+        scope.locals.add(name);
+        scope.references.add(name);
+      }
+      return;
+    case "FunctionExpression":
+      return;
+    case "VariableDeclarator":
+      scope.locals.add(name(child(node, "id")));
+      break;
+    case "CatchClause":
+      final String param = name(child(node, "param"));
+      scope.locals.add(param);
+      scope.references.add(param);
+      scope.shared.add(param);
+      break;
+    default:
+      break;
+    }
+    for (final Map.Entry<String, JsonElement> child : node.entrySet()) {
+      declare(child.getValue(), scope);
+    }
+  }
+
+  // value is assigned to target
+  private void assign(JsonObject target, JsonObject value, Scope scope) {
+    final boolean reference = isReference(value, scope);
+    if (type(target).equals("Identifier")) {
+      final String name = name(target);
+      final Scope s = resolve(name, scope);
+      if (s == null || name.equals(s.entry)) {
+        // the variables that are not local only hold primitive values, unless
+        // some script keeps a reference
+        retains |= reference;
+      } else if (reference || isShared(value, scope)) {
+        reference(s, name, isShared(value, scope));
+      }
+      return;
+    }
+    if (!reference) {
+      return;
+    }
+    if (!type(target).equals("MemberExpression")) {
+      retains = true;
+      return;
+    }
+    final String name = name(root(target));
+    final Scope s = (name != null) ? resolve(name, scope) : null;
+    if (s == null || s.shared.contains(name)
+        && !(name.equals(s.entry) && name.equals(name(value)))) {
+      // a property of an object that may be seen from elsewhere, other than
+      // entry.self = entry
+      retains = true;
+    } else if (!name.equals(s.entry)) {
+      // a new local object
+      reference(s, name, false);
+    }
+  }
+
+  private void call(JsonObject node, Scope scope) {
+    final JsonObject callee = child(node, "callee");
+    final String name = name(callee);
+    if (name != null && EVALS.contains(name)) {
+      retains = true;
+      return;
+    }
+    boolean stored = false;
+    for (final JsonElement arg : node.getAsJsonArray("arguments")) {
+      stored |= isReference(arg.getAsJsonObject(), scope);
+    }
+    if (!stored) {
+      return;
+    }
+    switch (type(callee)) {
+    case "Identifier":
+    case "FunctionExpression":
+      // the functions of the lens are analyzed, other functions are built in
+      return;
+    case "MemberExpression":
+      final String method = property(callee);
+      final String object = name(root(callee));
+      if (method != null && READERS.contains(method)
+          || object != null && resolve(object, scope) == null
+              && (LIBRARIES.contains(object) || object.equals("CL"))) {
+        return;
+      }
+      // the method may store its arguments in its object
+      final Scope s = (object != null) ? resolve(object, scope) : null;
+      if (s == null || s.shared.contains(object)) {
+        retains = true;
+      } else {
+        reference(s, object, false);
+      }
+      return;
+    default:
+      retains = true;
+    }
+  }
+
+  // the value of an expression may be (or hold) a reference to an object
+  private boolean isReference(JsonObject node, Scope scope) {
+    if (node == null) {
+      return false;
+    }
+    switch (type(node)) {
+    case "Literal":
+    case "UnaryExpression":
+    case "UpdateExpression":
+      return false;
+    case "BinaryExpression":
+      return node.get("operator").getAsString().equals(",")
+          && isReference(child(node, "right"), scope);
+    case "Identifier":
+      final String name = name(node);
+      final Scope s = resolve(name, scope);
+      return s != null && s.references.contains(name);
+    case "MemberExpression":
+      // the fields of the entry are kept with it
+      final JsonObject root = root(node);
+      if (!type(root).equals("Identifier")) {
+        return !"length".equals(property(node));
+      }
+      final Scope r = resolve(name(root), scope);
+      return !("length".equals(property(node)) || r == null
+          || name(root).equals(r.entry));
+    case "ArrayExpression":
+      for (final JsonElement element : node.getAsJsonArray("elements")) {
+        if (element.isJsonObject()
+            && isReference(element.getAsJsonObject(), scope)) {
+          return true;
+        }
+      }
+      return false;
+    case "ObjectExpression":
+      for (final JsonElement property : node.getAsJsonArray("properties")) {
+        if (isReference(child(property.getAsJsonObject(), "value"), scope)) {
+          return true;
+        }
+      }
+      return false;
+    case "FunctionExpression":
+    case "FunctionDeclaration":
+      return captures(node.get("body"), scope);
+    case "CallExpression":
+      final JsonObject callee = child(node, "callee");
+      final String function = type(callee).equals("MemberExpression")
+          ? property(callee) : name(callee);
+      final String object = name(root(callee));
+      return !(function != null && PRIMITIVES.contains(function)
+          || "Math".equals(object));
+    case "NewExpression":
+      for (final JsonElement arg : node.getAsJsonArray("arguments")) {
+        if (isReference(arg.getAsJsonObject(), scope)) {
+          return true;
+        }
+      }
+      return false;
+    case "LogicalExpression":
+      return isReference(child(node, "left"), scope)
+          || isReference(child(node, "right"), scope);
+    case "ConditionalExpression":
+      return isReference(child(node, "consequent"), scope)
+          || isReference(child(node, "alternate"), scope);
+    case "AssignmentExpression":
+      return node.get("operator").getAsString().equals("=")
+          && isReference(child(node, "right"), scope);
+    default:
+      return true;
+    }
+  }
+
+  // the value of an expression may be an object seen from elsewhere
+  private boolean isShared(JsonObject node, Scope scope) {
+    if (node == null) {
+      return false;
+    }
+    switch (type(node)) {
+    case "Literal":
+    case "UnaryExpression":
+    case "UpdateExpression":
+    case "ArrayExpression":
+    case "ObjectExpression":
+    case "NewExpression":
+    case "FunctionExpression":
+    case "FunctionDeclaration":
+      return false;
+    case "BinaryExpression":
+      return node.get("operator").getAsString().equals(",")
+          && isShared(child(node, "right"), scope);
+    case "Identifier":
+      final String name = name(node);
+      final Scope s = resolve(name, scope);
+      if (s == null) {
+        return !(name.equals("undefined") || name.equals("NaN")
+            || name.equals("Infinity"));
+      }
+      return s.shared.contains(name);
+    case "CallExpression":
+      return isReference(node, scope);
+    case "LogicalExpression":
+      return isShared(child(node, "left"), scope)
+          || isShared(child(node, "right"), scope);
+    case "ConditionalExpression":
+      return isShared(child(node, "consequent"), scope)
+          || isShared(child(node, "alternate"), scope);
+    case "AssignmentExpression":
+      return node.get("operator").getAsString().equals("=")
+          && isShared(child(node, "right"), scope);
+    default:
+      return true;
+    }
+  }
+
+  // a function refers to a local of the functions around it that may hold
+  // a reference
+  private boolean captures(JsonElement e, Scope scope) {
+    if (e == null || e.isJsonNull() || e.isJsonPrimitive()) {
+      return false;
+    }
+    if (e.isJsonArray()) {
+      for (final JsonElement child : e.getAsJsonArray()) {
+        if (captures(child, scope)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    final JsonObject node = e.getAsJsonObject();
+    if (node.has("type") && type(node).equals("Identifier")) {
+      final String name = name(node);
+      final Scope s = resolve(name, scope);
+      return s != null
+          && (s.references.contains(name) || name.equals(s.entry));
+    }
+    for (final Map.Entry<String, JsonElement> child : node.entrySet()) {
+      if (!child.getKey().equals("key") && captures(child.getValue(), scope)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
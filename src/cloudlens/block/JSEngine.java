@@ -68,6 +68,9 @@ public class JSEngine implements BlockEngine {
 
   @Override
   public boolean isUndefined(BlockObject o) {
+    if (o instanceof LazyEntry) {
+      return false;
+    }
     return isUndefined(o.internalObject());
   }
 
@@ -106,6 +109,9 @@ public class JSEngine implements BlockEngine {
 
   @Override
   public boolean isArray(BlockObject array) {
+    if (array instanceof LazyEntry) {
+      return false;
+    }
     return isArray(array.internalObject());
   }
 
@@ -243,8 +249,9 @@ public class JSEngine implements BlockEngine {
     link.eval();
   }
 
+  // the AST of a script, as the JSON of the Nashorn parser
   @SuppressWarnings("restriction")
-  public static void checkSyntax(String file, int line, String script) {
+  static String parse(String script) {
     final jdk.nashorn.internal.runtime.options.Options options = new jdk.nashorn.internal.runtime.options.Options(
         "nashorn");
     options.set("anon.functions", true);
@@ -254,10 +261,22 @@ public class JSEngine implements BlockEngine {
     final jdk.nashorn.internal.runtime.ErrorManager errors = new jdk.nashorn.internal.runtime.ErrorManager();
     final jdk.nashorn.internal.runtime.Context contextm = new jdk.nashorn.internal.runtime.Context(
         options, errors, Thread.currentThread().getContextClassLoader());
+    final jdk.nashorn.internal.objects.Global global = jdk.nashorn.internal.runtime.Context
+        .getGlobal();
     jdk.nashorn.internal.runtime.Context.setGlobal(contextm.createGlobal());
 
     try {
-      jdk.nashorn.api.scripting.ScriptUtils.parse(script, "<parse>", false);
+      return jdk.nashorn.api.scripting.ScriptUtils.parse(script, "<parse>",
+          false);
+    } finally {
+      jdk.nashorn.internal.runtime.Context.setGlobal(global);
+    }
+  }
+
+  @SuppressWarnings("restriction")
+  public static void checkSyntax(String file, int line, String script) {
+    try {
+      parse(script);
     } catch (final jdk.nashorn.api.scripting.NashornException e) {
       throw new BlockException("Syntax Error: " + file + " block starting line "
           + line + ":\n" + e.getMessage().substring(13));
@@ -47,6 +47,24 @@ public class JSObject implements BlockObject {
     return (nashornObject instanceof Map);
   }
 
+  // an object literal or JSON object: Object class, Object.prototype proto
+  @SuppressWarnings("restriction")
+  @Override
+  public boolean isPlainObject() {
+    if (!(nashornObject instanceof jdk.nashorn.api.scripting.ScriptObjectMirror)) {
+      return false;
+    }
+    final jdk.nashorn.api.scripting.ScriptObjectMirror o = (jdk.nashorn.api.scripting.ScriptObjectMirror) nashornObject;
+    if (!o.getClassName().equals("Object") || o.isArray()
+        || o.isFunction()) {
+      return false;
+    }
+    final Object proto = o.getProto();
+    return proto instanceof jdk.nashorn.api.scripting.ScriptObjectMirror
+        && ((jdk.nashorn.api.scripting.ScriptObjectMirror) proto)
+            .getProto() == null;
+  }
+
   @SuppressWarnings("unchecked")
   @Override
   public Map<String, Object> asMap() {
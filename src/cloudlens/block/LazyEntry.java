@@ -0,0 +1,245 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.block;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+import cloudlens.parser.ASTElement;
+
+// A log entry whose fields (strings, numbers, ...) are kept in Java until a
+// script needs the entry. The JS object is built on the first call to
+// internalObject(), e.g. when the entry is passed to a process block, and
+// the entry then forwards to it. Match rules, when conditions and the
+// history read and write the fields without building it.
+public class LazyEntry implements BlockObject {
+  private final BlockEngine engine;
+  private String[] keys;
+  private Object[] values;
+  private int size = 0;
+  private BlockObject object = null;
+
+  public LazyEntry(BlockEngine engine, int capacity) {
+    this.engine = engine;
+    this.keys = new String[Math.max(capacity, 1)];
+    this.values = new Object[Math.max(capacity, 1)];
+  }
+
+  // a log line
+  public LazyEntry(BlockEngine engine, String message) {
+    this(engine, 4);
+    put("message", message);
+  }
+
+  // the JS object has not been built
+  public boolean isLazy() {
+    return object == null;
+  }
+
+  // the fields, in order, while the entry is lazy
+  public int fields() {
+    return size;
+  }
+
+  public String key(int i) {
+    return keys[i];
+  }
+
+  public Object value(int i) {
+    return values[i];
+  }
+
+  int indexOf(String field) {
+    for (int i = 0; i < size; i++) {
+      if (keys[i].equals(field)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private BlockObject object() {
+    if (object == null) {
+      object = engine.newObject();
+      for (int i = 0; i < size; i++) {
+        object.put(keys[i], values[i]);
+      }
+      keys = null;
+      values = null;
+    }
+    return object;
+  }
+
+  @Override
+  public Object internalObject() {
+    return object().internalObject();
+  }
+
+  @Override
+  public boolean isUndefined() {
+    return false;
+  }
+
+  @Override
+  public boolean isMap() {
+    return true;
+  }
+
+  @Override
+  public boolean isPlainObject() {
+    return (object == null) || object.isPlainObject();
+  }
+
+  @Override
+  public Map<String, Object> asMap() {
+    return object().asMap();
+  }
+
+  @Override
+  public boolean isMapArray() {
+    return object().isMapArray();
+  }
+
+  @Override
+  public Map<String, Map<String, Object>> asMapArray() {
+    return object().asMapArray();
+  }
+
+  @Override
+  public boolean isIterator() {
+    return false;
+  }
+
+  @Override
+  public Iterator<BlockObject> asIterator() {
+    return object().asIterator();
+  }
+
+  @Override
+  public boolean asBoolean() {
+    return object().asBoolean();
+  }
+
+  @Override
+  public String asString() {
+    return object().asString();
+  }
+
+  @Override
+  public ASTElement asAst() {
+    return object().asAst();
+  }
+
+  @Override
+  public BlockObject get(String field) {
+    if (object != null) {
+      return object.get(field);
+    }
+    final int i = indexOf(field);
+    return engine.newObject((i < 0) ? null : values[i]);
+  }
+
+  @Override
+  public void put(String field, Object o) {
+    if (object != null) {
+      object.put(field, o);
+      return;
+    }
+    final int i = indexOf(field);
+    if (i >= 0) {
+      values[i] = o;
+      return;
+    }
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, 2 * size);
+      values = Arrays.copyOf(values, 2 * size);
+    }
+    keys[size] = field;
+    values[size] = o;
+    size++;
+  }
+
+  @Override
+  public void put(String field, BlockObject o) {
+    put(field, o.internalObject());
+  }
+
+  @Override
+  public BlockObject call(Object... args) {
+    return object().call(args);
+  }
+
+  @Override
+  public BlockObject call(BlockObject... args) {
+    return object().call(args);
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    return (object != null) ? object.containsKey(key) : indexOf(key) >= 0;
+  }
+
+  @Override
+  public boolean checkpath(String[] path, int pos) {
+    if (object != null) {
+      return object.checkpath(path, pos);
+    }
+    if (pos == path.length - 1) {
+      return indexOf(path[pos]) >= 0;
+    }
+    return get(path[pos]).checkpath(path, pos + 1);
+  }
+
+  @Override
+  public BlockObject getpath(String[] path, int pos) {
+    if (object != null) {
+      return object.getpath(path, pos);
+    }
+    if (pos == path.length - 1) {
+      return get(path[pos]);
+    }
+    return get(path[pos]).getpath(path, pos + 1);
+  }
+
+  @Override
+  public long size() {
+    return object().size();
+  }
+
+  @Override
+  public BlockObject get(int i) {
+    return object().get(i);
+  }
+
+  @Override
+  public void set(int i, BlockObject o) {
+    object().set(i, o);
+  }
+
+  @Override
+  public void push(BlockObject o) {
+    object().push(o);
+  }
+
+  @Override
+  public Iterator<BlockObject> asList() {
+    return object().asList();
+  }
+}
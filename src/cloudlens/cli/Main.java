@@ -19,6 +19,7 @@
 package cloudlens.cli;
 
 import java.io.InputStream;
+import java.util.Iterator;
 import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
@@ -30,11 +31,17 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import cloudlens.engine.CL;
+import cloudlens.engine.CLBuilder;
 import cloudlens.engine.CLException;
+import cloudlens.engine.HistoryStore;
+import cloudlens.engine.LogCache;
+import cloudlens.engine.Profiler;
 import cloudlens.parser.ASTBuilder;
 import cloudlens.parser.ASTElement;
 import cloudlens.parser.ASTException;
 import cloudlens.parser.FileReader;
+import cloudlens.parser.LineRingBuffer;
+import cloudlens.parser.LogSelection;
 
 public class Main {
 
@@ -51,11 +58,84 @@ public class Main {
     final Option js = Option.builder().longOpt("js").hasArg().argName("js file")
         .desc("Load JS file.").build();
     final Option format = Option.builder("f").longOpt("format").hasArg()
-        .desc("Choose log format (text or json).").build();
+        .desc("Choose log format (text, json or jsonl).").build();
     final Option streaming = Option.builder().longOpt("stream")
         .desc("Streaming mode.").build();
     final Option history = Option.builder().longOpt("history")
         .desc("Store history.").build();
+    final Option threads = Option.builder().longOpt("threads").hasArg()
+        .argName("n").desc("Number of threads reading log files.").build();
+    final Option follow = Option.builder().longOpt("follow")
+        .desc("Follow the log file as it grows (streaming mode).").build();
+    final Option timestamp = Option.builder().longOpt("timestamp").hasArg()
+        .argName("regex")
+        .desc("Timestamp of log lines for -since and -until, e.g. "
+            + "(?<t:Date[yyyy-MM-dd HH:mm:ss]>\\S+ \\S+).")
+        .build();
+    final Option since = Option.builder().longOpt("since").hasArg()
+        .argName("time").desc("Skip log lines before this time.").build();
+    final Option until = Option.builder().longOpt("until").hasArg()
+        .argName("time").desc("Skip log lines after this time.").build();
+    final Option range = Option.builder().longOpt("lines").hasArg()
+        .argName("first:last").desc("Range of log lines to read.").build();
+    final Option readahead = Option.builder().longOpt("readahead").hasArg()
+        .argName("lines")
+        .desc("Read and decode log lines on a separate thread, up to n lines "
+            + "ahead.")
+        .build();
+    final Option compact = Option.builder().longOpt("compact")
+        .desc("Store the history in a compact binary form, except the "
+            + "entries that scripts may keep references to.")
+        .build();
+    final Option budget = Option.builder().longOpt("budget").hasArg()
+        .argName("size")
+        .desc("Memory for the history before it is written to disk, e.g. "
+            + "512m (implies -compact).")
+        .build();
+    final Option memory = Option.builder().longOpt("memory")
+        .desc("Report the memory used by the history.").build();
+    final Option retain = Option.builder().longOpt("retain").hasArg()
+        .argName("n|duration")
+        .desc("With -stream -history, keep only the last n entries, or the "
+            + "entries within a duration (e.g. 15m) of the latest -timefield.")
+        .build();
+    final Option timefield = Option.builder().longOpt("timefield").hasArg()
+        .argName("field")
+        .desc("Time of the entries in ms (e.g. a Date capture) for -retain.")
+        .build();
+    final Option batch = Option.builder().longOpt("batch").hasArg()
+        .argName("n")
+        .desc("Push n entries at a time through the pipelines instead of "
+            + "pulling them through a chain of iterators.")
+        .build();
+    final Option parallel = Option.builder().longOpt("parallel").hasArg()
+        .argName("n")
+        .desc("Match the entries against the rules that start a pipeline "
+            + "on n threads (process blocks still run on one thread).")
+        .build();
+    final Option stages = Option.builder().longOpt("stages").hasArg()
+        .argName("n")
+        .desc("Run the match rules that start a pipeline on threads of "
+            + "their own, connected by queues of n entries.")
+        .build();
+    final Option adaptive = Option.builder().longOpt("adaptive")
+        .desc("Try the rules of each match block in the order of their hit "
+            + "rates, until one matches, when they start with distinct "
+            + "texts.")
+        .build();
+    final Option fuse = Option.builder().longOpt("fuse")
+        .desc("Run adjacent process blocks as a single JS call per entry.")
+        .build();
+    final Option profile = Option.builder().longOpt("profile")
+        .desc("Report the calls and times of the match rules, process "
+            + "blocks, blocks and sources.")
+        .build();
+    final Option cache = Option.builder().longOpt("cache").hasArg()
+        .argName("directory")
+        .desc("Keep the log entries after the first match rules in this "
+            + "directory, and reuse them while the log files do not change "
+            + "(implies -compact).")
+        .build();
 
     final Options options = new Options();
     options.addOption(log);
@@ -65,6 +145,25 @@ public class Main {
     options.addOption(js);
     options.addOption(streaming);
     options.addOption(history);
+    options.addOption(threads);
+    options.addOption(readahead);
+    options.addOption(follow);
+    options.addOption(timestamp);
+    options.addOption(since);
+    options.addOption(until);
+    options.addOption(range);
+    options.addOption(compact);
+    options.addOption(budget);
+    options.addOption(memory);
+    options.addOption(cache);
+    options.addOption(retain);
+    options.addOption(timefield);
+    options.addOption(batch);
+    options.addOption(parallel);
+    options.addOption(stages);
+    options.addOption(adaptive);
+    options.addOption(fuse);
+    options.addOption(profile);
 
     try {
       final CommandLine cmd = optionParser.parse(options, args);
@@ -74,38 +173,190 @@ public class Main {
       final String[] lensFiles = cmd.getOptionValues("run");
       final String[] logFiles = cmd.getOptionValues("log");
       final String source = cmd.getOptionValue("format");
+      final String readers = cmd.getOptionValue("threads", "1");
+      final String ahead = cmd.getOptionValue("readahead");
 
-      final boolean stream = cmd.hasOption("stream") || !cmd.hasOption("log");
+      final boolean stream = cmd.hasOption("stream") || !cmd.hasOption("log")
+          || cmd.hasOption("follow");
       final boolean withHistory = cmd.hasOption("history") || !stream;
 
       final CL cl = new CL(System.out, System.err, stream, withHistory);
 
       try {
-        final InputStream input = (cmd.hasOption("log"))
-            ? FileReader.readFiles(logFiles) : System.in;
-
-        if (source == null) {
-          cl.source(input);
-        } else {
-          switch (source) {
-          case "text":
-            cl.source(input);
-            break;
-          case "json":
-            cl.json(input, jsonPath);
-            break;
-          default:
-            input.close();
-            throw new CLException("Unsupported format: " + source);
+        final int nThreads;
+        try {
+          nThreads = Integer.parseInt(readers);
+        } catch (final NumberFormatException e) {
+          throw new CLException("Invalid number of threads: " + readers);
+        }
+        if (nThreads < 1) {
+          throw new CLException("Invalid number of threads: " + readers);
+        }
+        final int nAhead;
+        try {
+          nAhead = (ahead == null) ? 0 : Integer.parseInt(ahead);
+        } catch (final NumberFormatException e) {
+          throw new CLException("Invalid read-ahead capacity: " + ahead);
+        }
+
+        if (cmd.hasOption("batch")) {
+          final String size = cmd.getOptionValue("batch");
+          try {
+            cl.batch = Integer.parseInt(size);
+          } catch (final NumberFormatException e) {
+            throw new CLException("Invalid batch size: " + size);
+          }
+          if (cl.batch < 0) {
+            throw new CLException("Invalid batch size: " + size);
+          }
+        }
+
+        if (cmd.hasOption("parallel")) {
+          final String n = cmd.getOptionValue("parallel");
+          try {
+            cl.parallel = Integer.parseInt(n);
+          } catch (final NumberFormatException e) {
+            throw new CLException("Invalid number of threads: " + n);
+          }
+          if (cl.parallel < 1) {
+            throw new CLException("Invalid number of threads: " + n);
+          }
+        }
+
+        if (cmd.hasOption("stages")) {
+          final String n = cmd.getOptionValue("stages");
+          try {
+            cl.stages = Integer.parseInt(n);
+          } catch (final NumberFormatException e) {
+            throw new CLException("Invalid queue capacity: " + n);
+          }
+          if (cl.stages < 1) {
+            throw new CLException("Invalid queue capacity: " + n);
+          }
+        }
+
+        cl.adaptive = cmd.hasOption("adaptive");
+        cl.fuse = cmd.hasOption("fuse");
+        if (cmd.hasOption("profile")) {
+          cl.profiler = new Profiler();
+        }
+
+        if (cmd.hasOption("retain")) {
+          if (!stream || !withHistory) {
+            throw new CLException("-retain requires -stream -history.");
           }
+          cl.retention = HistoryStore.Retention.parse(
+              cmd.getOptionValue("retain"), cmd.getOptionValue("timefield"));
+        }
+
+        if (cmd.hasOption("budget")) {
+          cl.budget = HistoryStore.parseBudget(cmd.getOptionValue("budget"));
+        }
+        // only encoded entries are spilled to disk or cached
+        cl.compact = cmd.hasOption("compact") || cmd.hasOption("budget")
+            || cmd.hasOption("cache");
+
+        final InputStream input = (cmd.hasOption("log")) ? null
+            : FileReader.decompress(System.in);
+
+        final LogSelection selection = (cmd.hasOption("since")
+            || cmd.hasOption("until") || cmd.hasOption("lines"))
+                ? new LogSelection(cmd.getOptionValue("timestamp"),
+                    cmd.getOptionValue("lines"), cmd.getOptionValue("since"),
+                    cmd.getOptionValue("until"))
+                : null;
+        final String logFormat = (source == null) ? "text" : source;
+        if (selection != null && (input != null || cmd.hasOption("follow")
+            || logFormat.equals("json"))) {
+          throw new CLException("-since, -until and -lines require text or "
+              + "jsonl log files (not followed).");
+        }
+        if (cmd.hasOption("cache") && (stream || logFormat.equals("json"))) {
+          throw new CLException(
+              "-cache requires text or jsonl log files (not streamed).");
+        }
+        if ((cmd.hasOption("readahead") || cmd.hasOption("threads"))
+            && logFormat.equals("json")) {
+          throw new CLException(
+              "-readahead and -threads require text or jsonl logs.");
+        }
+        final LineRingBuffer[] ring = { null };
+        // a lens that stops at a limit reads only the start of the log
+        final List<ASTElement> top = ASTBuilder.parseFiles(lensFiles);
+        cl.limited = CLBuilder.limited(top);
+
+        switch (logFormat) {
+        case "text":
+        case "jsonl":
+          final Runnable read = () -> {
+            Iterator<String> lines;
+            if (cmd.hasOption("follow")) {
+              if (logFiles == null || logFiles.length != 1
+                  || (withHistory && cl.retention == null)) {
+                throw new CLException(
+                    "follow mode requires a single log file and no history.");
+              }
+              lines = FileReader.followLines("local:" + logFiles[0]);
+            } else if (input == null && selection != null) {
+              lines = FileReader.readLines(logFiles, selection);
+            } else if (input == null) {
+              lines = FileReader.readLines(logFiles, nThreads);
+            } else {
+              lines = FileReader.lines(input);
+            }
+            if (ahead != null) {
+              ring[0] = new LineRingBuffer(lines, nAhead);
+              lines = ring[0];
+            }
+            if (logFormat.equals("text")) {
+              cl.source(lines);
+            } else {
+              cl.jsonl(lines);
+            }
+            if ((input != null || cmd.hasOption("follow"))
+                && (!withHistory || cl.retention != null)) {
+              // lines are processed as they arrive
+              cl.heapIt.get(0).live = true;
+            }
+          };
+          if (cmd.hasOption("cache")) {
+            // the read options that change the entries
+            final String key = logFormat + " "
+                + cmd.getOptionValue("timestamp") + " "
+                + cmd.getOptionValue("lines") + " "
+                + cmd.getOptionValue("since") + " "
+                + cmd.getOptionValue("until");
+            cl.cache(new LogCache(cmd.getOptionValue("cache"), logFiles, key),
+                read);
+          } else {
+            read.run();
+          }
+          break;
+        case "json":
+          if (cmd.hasOption("follow")) {
+            throw new CLException("follow mode is not supported for json.");
+          }
+          cl.json((input == null) ? FileReader.readFiles(logFiles) : input,
+              jsonPath);
+          break;
+        default:
+          throw new CLException("Unsupported format: " + source);
         }
 
         for (final String jsFile : FileReader.fullPaths(jsFiles)) {
           cl.engine.eval("CL.loadjs('file://" + jsFile + "')");
         }
 
-        final List<ASTElement> top = ASTBuilder.parseFiles(lensFiles);
         cl.launch(top);
+        if (ring[0] != null) {
+          cl.errWriter.println(ring[0].report());
+        }
+        if (cmd.hasOption("memory")) {
+          cl.errWriter.println(cl.heapIt.get(0).history.report());
+        }
+        if (cl.profiler != null) {
+          cl.errWriter.println(cl.profiler.report());
+        }
 
       } catch (final CLException | ASTException e) {
         cl.errWriter.println(e.getMessage());
@@ -27,8 +27,10 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Future;
@@ -62,7 +64,48 @@ public class CL {
   public Iterator<BlockObject> log;
   public List<CLIterator> heapIt;
   public boolean executed;
+  // memory budget of the history, in bytes (0 if none)
+  public long budget = 0;
+  // the history is encoded into byte arrays instead of keeping the entries
+  // as JS objects (see HistoryStore)
+  public boolean compact = false;
+  // scripts may keep references to the entries (see JSAnalysis): a compact
+  // history then keeps the entries they have seen as JS objects, so that
+  // changes made through these references are recorded
+  public boolean retains = false;
+  // the window of the history to keep in streaming mode (null if all). The
+  // log is then not stored ahead, and the history is the window of the
+  // entries that went through the last pipeline.
+  public HistoryStore.Retention retention = null;
+  // entries pushed through a pipeline at a time (0 to pull them through a
+  // chain of iterators)
+  public int batch = 0;
+  // threads matching the entries against the rules that start a pipeline
+  public int parallel = 1;
+  // capacity of the queues between the match rules that start a pipeline,
+  // each on its own thread (0 if all the stages run on the thread of the lens)
+  public int stages = 0;
+  // the rules of a match block are tried in the order of their hit rates,
+  // until one matches, when they cannot match the same entry
+  public boolean adaptive = false;
+  // adjacent process blocks run as one JS call per entry
+  public boolean fuse = false;
+  // counts and times the steps of the lenses (null if not profiling)
+  public Profiler profiler = null;
+  // the first pipeline of the lens stops at a limit: the log is read as the
+  // pipeline asks for entries, not stored ahead
+  public boolean limited = false;
+  // the input guards of the pipelines running, innermost first
+  final Deque<PipelineStageLimit> running = new ArrayDeque<>();
   private final boolean withHistory;
+  // reads the log when it is needed, unless the cache has the entries after
+  // the match rules that start the lens
+  private LogCache cache = null;
+  private Runnable pending = null;
+  // records the entries after the match rules, for the cache
+  private CLIterator tap = null;
+  private List<PipelineStage> matches;
+  private List<String> rules;
 
   public CL(OutputStream out, OutputStream err, boolean stream,
       boolean withHistory) {
@@ -83,12 +126,21 @@ public class CL {
     engine.eval("var CL = {result:null,"
         + "log: (function() { var v = CLx; return function() v.log() }) (),"
         + "loadjs:(function() { var v = CLx; return function(url) v.loadjs(url) })(),"
+        + "memory: (function() { var v = CLx; return function() v.memory() }) (),"
+        + "profile: (function() { var v = CLx; return function() v.profile() }) (),"
+        + "stop: (function() { var v = CLx; return function() v.stop() }) (),"
         + "export:(function() { var v = CLx; return function(file) v.export(file) })(),"
         + "findRegex:(function() { var v = CLx; return function(regex, input) v.findRegex(regex, input) })(),"
         + "run:(function(){var v = CLx; return function(lens, stream, jsArgs){return v.run(lens, stream, jsArgs)} })(),"
         + " }");
     engine.eval(
         "CL.log.toString = function() 'function log() { [native code] }'");
+    engine.eval(
+        "CL.memory.toString = function() 'function memory() { [native code] }'");
+    engine.eval(
+        "CL.profile.toString = function() 'function profile() { [native code] }'");
+    engine.eval(
+        "CL.stop.toString = function() 'function stop() { [native code] }'");
     engine.eval(
         "CL.loadjs.toString = function() 'function loadjs() { [native code] }'");
     engine.eval(
@@ -106,6 +158,7 @@ public class CL {
 
   public void launch(List<ASTElement> astElements) {
     engine.eval("var CLDEV__LOG__ = {content: CL.log};");
+    retains |= compact && CLBuilder.retains(astElements);
     final String code = CLBuilder.compileTop(astElements);
     // System.out.println(code);
     final CLElement top = new CLElement();
@@ -113,9 +166,21 @@ public class CL {
     CLBuilder.spawn(top, astElements);
     final BlockObject closures = top.closure.call();
     final List<RuntimeElement> runtimes = CLBuilder.build(this, top, closures);
+    if (pending != null && !runtimes.isEmpty()
+        && runtimes.get(0) instanceof RuntimePipeline) {
+      final List<PipelineStage> rest = match(
+          ((RuntimePipeline) runtimes.get(0)).pipeline);
+      if (rest.isEmpty()) {
+        runtimes.remove(0);
+      } else {
+        runtimes.set(0, new RuntimePipeline(rest));
+      }
+    }
+    read();
 
     for (final RuntimeElement child : runtimes) {
       heapIt.set(0, child.run(this, heapIt.get(0), withHistory));
+      save();
     }
 
     if (!executed) {
@@ -123,7 +188,78 @@ public class CL {
     }
   }
 
+  public void cache(LogCache cache, Runnable read) {
+    this.cache = cache;
+    this.pending = read;
+  }
+
+  private void read() {
+    if (pending != null) {
+      final Runnable read = pending;
+      pending = null;
+      read.run();
+    }
+  }
+
+  // the rest of the pipeline, after the match stages that start it have been
+  // applied to the log or loaded from the cache
+  private List<PipelineStage> match(List<PipelineStage> pipeline) {
+    int n = 0;
+    final List<String> rules = new ArrayList<>();
+    while (n < pipeline.size()
+        && pipeline.get(n) instanceof PipelineStageMatch) {
+      for (final PipelineStep step : pipeline.get(n).processors) {
+        rules.add(((PipelineStepPattern) step).rule());
+      }
+      n++;
+    }
+    if (n == 0) {
+      return pipeline;
+    }
+    final LogCache.Hit hit = cache.load(engine, budget, rules);
+    final List<PipelineStage> rest = new ArrayList<>(
+        pipeline.subList(n, pipeline.size()));
+    if (hit != null) {
+      pending = null;
+      executed |= hit.executed;
+      heapIt.set(0, new CLIterator(engine, hit.history, true));
+      return rest;
+    }
+    // the entries are recorded as they go through the rest of the pipeline
+    read();
+    tap = heapIt.get(0);
+    final HistoryStore input = tap.history;
+    matches = new ArrayList<>(pipeline.subList(0, n));
+    tap = RuntimePipeline.apply(this, matches, tap, false, null);
+    tap.withHistory = true;
+    tap.budget = budget;
+    tap.compact = compact;
+    tap.base = input;
+    this.rules = rules;
+    heapIt.set(0, tap);
+    if (rest.isEmpty()) {
+      save();
+    }
+    return rest;
+  }
+
+  // saves the entries recorded after the match rules, once the pipeline
+  // that follows them has read them all
+  private void save() {
+    if (tap != null) {
+      tap.iterate();
+      boolean matched = false;
+      for (final PipelineStage stage : matches) {
+        matched |= stage.executed;
+      }
+      executed |= matched;
+      cache.save(tap.history, rules, matched);
+      tap = null;
+    }
+  }
+
   public Object run(Object l, Object jsArray, Object logStream) {
+    read();
     final BlockObject jsLens = engine.newObject(l);
     final BlockObject jsStream = engine.newObject(logStream);
     final ASTLens astLens = (ASTLens) jsLens.get("ast").asAst();
@@ -134,11 +270,13 @@ public class CL {
     final BlockObject closures = element.closure.call(jsArray);
     final List<RuntimeElement> runtimes = CLBuilder.build(this, element,
         closures);
-    if (!engine.isUndefined(jsStream)) {
-      heapIt.add(0, new CLIterator(engine, jsStream, true));
-    } else {
-      heapIt.add(0, new CLIterator(engine, heapIt.get(0).history, true));
-    }
+    final CLIterator input = !engine.isUndefined(jsStream)
+        ? new CLIterator(engine, jsStream, true)
+        : new CLIterator(engine, heapIt.get(0).history, true);
+    input.budget = budget;
+    input.compact = compact;
+    input.retains = retains;
+    heapIt.add(0, input);
 
     for (final RuntimeElement child : runtimes) {
       heapIt.set(0, child.run(this, heapIt.get(0), true));
@@ -146,12 +284,57 @@ public class CL {
 
     final CLIterator res = heapIt.get(0);
     heapIt.remove(0);
-    return engine.newArray(res.history).internalObject();
+    return res.history.toArray().internalObject();
   }
 
   public Object log() {
-    final BlockObject l = engine.newArray(heapIt.get(0).history);
-    return l.internalObject();
+    read();
+    return heapIt.get(0).history.toArray().internalObject();
+  }
+
+  // the first n entries of the history, e.g. to display them
+  public Object head(int n) {
+    read();
+    return heapIt.get(0).history.head(n).internalObject();
+  }
+
+  public Object memory() {
+    read();
+    final HistoryStore history = heapIt.get(0).history;
+    final BlockObject res = engine.newObject();
+    res.put("entries", history.size());
+    res.put("bytes", (double) history.bytes());
+    res.put("bytesPerEntry", (history.size() > 0)
+        ? (double) history.bytes() / history.size() : 0.0);
+    res.put("shared", (double) history.shared());
+    res.put("objects", history.objects());
+    res.put("spilled", (double) history.spilled());
+    final BlockObject dictionaries = engine.newObject();
+    for (final HistoryStore.FieldStats field : history.dictionaries()) {
+      final BlockObject stats = engine.newObject();
+      stats.put("values", field.values);
+      stats.put("uses", (double) field.uses);
+      stats.put("saved", (double) field.saved);
+      dictionaries.put(field.field, stats);
+    }
+    res.put("dictionaries", dictionaries);
+    return res.internalObject();
+  }
+
+  // the counts and times of the steps so far (none if not profiling)
+  public Object profile() {
+    if (profiler == null) {
+      return engine.newArray().internalObject();
+    }
+    return profiler.toArray(engine).internalObject();
+  }
+
+  // no more entries are read by the innermost pipeline running: the entries
+  // already read go through the rest of it
+  public void stop() {
+    if (!running.isEmpty()) {
+      running.peek().stop();
+    }
   }
 
   public boolean findRegex(String regex, String input) {
@@ -162,17 +345,43 @@ public class CL {
 
   public void loadjs(String urlString) {
     final InputStream inputStream = FileReader.fetchFile(urlString);
+    // not analyzed
+    retains = true;
     engine.eval(new InputStreamReader(inputStream));
   }
 
-  public Object source(final InputStream inputStream) {
-    heapIt.set(0, CLIterator.source(engine, inputStream, withHistory));
-    return engine.newArray(heapIt.get(0).history).internalObject();
+  // the log is stored ahead in history mode, unless only a window is kept
+  boolean ahead(boolean withHistory) {
+    return withHistory && retention == null;
+  }
+
+  private boolean readAhead() {
+    return ahead(withHistory) && !limited;
+  }
+
+  public void source(final InputStream inputStream) {
+    heapIt.set(0, CLIterator.source(engine, inputStream, readAhead(),
+        budget, compact));
+  }
+
+  public void source(final Iterator<String> lines) {
+    heapIt.set(0, CLIterator.source(engine, lines, readAhead(),
+        budget, compact));
+  }
+
+  public void json(final InputStream inputStream, String path) {
+    heapIt.set(0, CLIterator.json(engine, inputStream, path,
+        readAhead(), budget, compact));
+  }
+
+  public void jsonl(final InputStream inputStream) {
+    heapIt.set(0, CLIterator.jsonl(engine, inputStream, readAhead(),
+        budget, compact));
   }
 
-  public Object json(final InputStream inputStream, String path) {
-    heapIt.set(0, CLIterator.json(engine, inputStream, path, withHistory));
-    return engine.newArray(heapIt.get(0).history).internalObject();
+  public void jsonl(final Iterator<String> lines) {
+    heapIt.set(0, CLIterator.jsonl(engine, lines, readAhead(),
+        budget, compact));
   }
 
   public void export(String path) throws IOException {
@@ -24,11 +24,13 @@ import java.util.List;
 import org.apache.commons.lang3.StringUtils;
 
 import cloudlens.block.BlockObject;
+import cloudlens.block.JSAnalysis;
 import cloudlens.parser.ASTAfter;
 import cloudlens.parser.ASTBlock;
 import cloudlens.parser.ASTDeclaration;
 import cloudlens.parser.ASTElement;
 import cloudlens.parser.ASTLens;
+import cloudlens.parser.ASTLimit;
 import cloudlens.parser.ASTMatch;
 import cloudlens.parser.ASTProcess;
 import cloudlens.parser.ASTRun;
@@ -61,7 +63,89 @@ public class CLBuilder {
     return header;
   }
 
+  // limit (n) parses as the run of a lens named limit: it is a limit unless
+  // such a lens is declared, so that limit is not a reserved word
+  private static void resolveLimits(List<ASTElement> astElements,
+      boolean declared) {
+    for (final ASTElement e : astElements) {
+      declared |= e.type == ASTElement.ASTType.Lens
+          && ((ASTLens) e).name.equals("limit");
+    }
+    for (int i = 0; i < astElements.size(); i++) {
+      final ASTElement e = astElements.get(i);
+      if (e.type == ASTElement.ASTType.Lens) {
+        resolveLimits(((ASTLens) e).astElements, declared);
+      } else if (e.type == ASTElement.ASTType.Run && !declared
+          && ((ASTRun) e).name.equals("limit")) {
+        astElements.set(i, new ASTLimit(e.file, e.line, ((ASTRun) e).args));
+      }
+    }
+  }
+
+  // the scripts of the lens may keep references to the entries (see
+  // JSAnalysis)
+  public static boolean retains(List<ASTElement> astElements) {
+    final List<String> lenses = new ArrayList<>();
+    lenses(astElements, lenses);
+    return retains(astElements, lenses);
+  }
+
+  private static void lenses(List<ASTElement> astElements,
+      List<String> names) {
+    for (final ASTElement e : astElements) {
+      if (e.type == ASTElement.ASTType.Lens) {
+        names.add(((ASTLens) e).name);
+        lenses(((ASTLens) e).astElements, names);
+      }
+    }
+  }
+
+  private static boolean retains(List<ASTElement> astElements,
+      List<String> lenses) {
+    for (final ASTElement e : astElements) {
+      switch (e.type) {
+      case Declaration:
+        if (JSAnalysis.retains(((ASTDeclaration) e).body, null, lenses)) {
+          return true;
+        }
+        break;
+      case Lens:
+        if (retains(((ASTLens) e).astElements, lenses)) {
+          return true;
+        }
+        break;
+      case Run:
+        // the arguments are variables of the lens
+        if (JSAnalysis.retains("CLDEV__ARGS__ = " + ((ASTRun) e).args, null,
+            lenses)) {
+          return true;
+        }
+        break;
+      case Block:
+        if (JSAnalysis.retains(((ASTBlock) e).script, null, lenses)) {
+          return true;
+        }
+        break;
+      case Process:
+        final ASTProcess process = (ASTProcess) e;
+        if (JSAnalysis.retains(process.script, process.var, lenses)) {
+          return true;
+        }
+        break;
+      case After:
+        if (JSAnalysis.retains(((ASTAfter) e).script, null, lenses)) {
+          return true;
+        }
+        break;
+      default:
+        break;
+      }
+    }
+    return false;
+  }
+
   public static String compileTop(List<ASTElement> astElements) {
+    resolveLimits(astElements, false);
     String code = header(astElements);
     code += "function (){ " + compile(astElements) + "}";
     return code;
@@ -108,6 +192,10 @@ public class CLBuilder {
       case Source:
         code += "{},";
         break;
+      case Limit:
+        final ASTLimit limit = (ASTLimit) e;
+        code += "function () { return " + limit.args + "},";
+        break;
       }
     }
     return code += closing;
@@ -154,6 +242,7 @@ public class CLBuilder {
       case Run:
       case Match:
       case Source:
+      case Limit:
         final CLElement srgmrs = new CLElement(e);
         element.children.add(srgmrs);
         spawn(element, astTail);
@@ -176,6 +265,7 @@ public class CLBuilder {
       case After:
       case Match:
       case Source:
+      case Limit:
         res.add(child);
         break;
       case Run:
@@ -212,6 +302,7 @@ public class CLBuilder {
       case After:
       case Match:
       case Source:
+      case Limit:
         final CLElement bsgmrs = child;
         bsgmrs.closure = closure;
         break;
@@ -240,9 +331,46 @@ public class CLBuilder {
     }
   }
 
-  private static void addRuntimePipeline(List<RuntimeElement> runtimeElements) {
+  // with -fuse, runs of adjacent process stages become one stage, with a
+  // single JS call per entry for the whole run (but for the profile, that
+  // times each block)
+  private static List<PipelineStage> fuse(CL cl, List<PipelineStage> stages) {
+    if (!cl.fuse || cl.profiler != null) {
+      return stages;
+    }
+    final List<PipelineStage> res = new ArrayList<>();
+    final List<PipelineStage> run = new ArrayList<>();
+    for (final PipelineStage stage : stages) {
+      if (stage instanceof PipelineStageProcess) {
+        run.add(stage);
+        continue;
+      }
+      addFused(cl, res, run);
+      res.add(stage);
+    }
+    addFused(cl, res, run);
+    return res;
+  }
+
+  private static void addFused(CL cl, List<PipelineStage> stages,
+      List<PipelineStage> run) {
+    if (run.size() == 1) {
+      stages.add(run.get(0));
+    } else if (run.size() > 1) {
+      final List<PipelineStepProcess> steps = new ArrayList<>();
+      for (final PipelineStage stage : run) {
+        steps.add((PipelineStepProcess) stage.processors.get(0));
+      }
+      stages.add(new PipelineStageProcess(new PipelineStepFused(cl.engine,
+          steps)));
+    }
+    run.clear();
+  }
+
+  private static void addRuntimePipeline(CL cl,
+      List<RuntimeElement> runtimeElements) {
     if (!pipeline.isEmpty()) {
-      runtimeElements.add(new RuntimePipeline(pipeline));
+      runtimeElements.add(new RuntimePipeline(fuse(cl, pipeline)));
       pipeline = new ArrayList<>();
     }
   }
@@ -255,17 +383,22 @@ public class CLBuilder {
     for (final CLElement child : elements) {
       switch (child.ast.type) {
       case Block:
-        addRuntimePipeline(runtimes);
+        addRuntimePipeline(cl, runtimes);
         final RuntimeBlock block = new RuntimeBlock(child);
         runtimes.add(block);
         break;
       case Source:
-        addRuntimePipeline(runtimes);
+        addRuntimePipeline(cl, runtimes);
         final RuntimeSource source = new RuntimeSource(child);
         runtimes.add(source);
         break;
       case Process:
         final PipelineStage process = new PipelineStageProcess(child);
+        if (cl.profiler != null) {
+          final PipelineStep step = process.processors.get(0);
+          step.stats = cl.profiler.stats("process",
+              ((PipelineStepProcess) step).location());
+        }
         pipeline.add(process);
         break;
       case After:
@@ -274,8 +407,20 @@ public class CLBuilder {
         break;
       case Match:
         final PipelineStage match = new PipelineStageMatch(child);
+        if (cl.profiler != null) {
+          for (final PipelineStep step : match.processors) {
+            step.stats = cl.profiler.stats("match",
+                ((PipelineStepPattern) step).location());
+          }
+        }
+        if (cl.adaptive) {
+          ((PipelineStageMatch) match).adapt();
+        }
         pipeline.add(match);
         break;
+      case Limit:
+        pipeline.add(new PipelineStageLimit(child));
+        break;
       case Declaration:
       case Lens:
       case Run:
@@ -283,8 +428,35 @@ public class CLBuilder {
 
       }
     }
-    addRuntimePipeline(runtimes);
+    addRuntimePipeline(cl, runtimes);
+    // a source read by a pipeline that stops at a limit is not stored ahead
+    for (int i = 0; i + 1 < runtimes.size(); i++) {
+      if (runtimes.get(i) instanceof RuntimeSource
+          && runtimes.get(i + 1) instanceof RuntimePipeline
+          && ((RuntimePipeline) runtimes.get(i + 1)).limited()) {
+        ((RuntimeSource) runtimes.get(i)).lazy = true;
+      }
+    }
     return runtimes;
   }
 
+  // the first pipeline of the lens stops at a limit, so that the log need
+  // not be read ahead
+  public static boolean limited(List<ASTElement> astElements) {
+    resolveLimits(astElements, false);
+    for (final ASTElement e : astElements) {
+      switch (e.type) {
+      case Limit:
+        return true;
+      case Block:
+      case Source:
+      case Run:
+        return false;
+      default:
+        break;
+      }
+    }
+    return false;
+  }
+
 }
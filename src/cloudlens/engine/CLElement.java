@@ -26,6 +26,7 @@ import cloudlens.parser.ASTAfter;
 import cloudlens.parser.ASTBlock;
 import cloudlens.parser.ASTElement;
 import cloudlens.parser.ASTLens;
+import cloudlens.parser.ASTLimit;
 import cloudlens.parser.ASTMatch;
 import cloudlens.parser.ASTProcess;
 import cloudlens.parser.ASTRun;
@@ -101,4 +102,12 @@ public class CLElement {
     }
   }
 
+  public ASTLimit limit() {
+    try {
+      return (ASTLimit) ast;
+    } catch (final Exception e) {
+      throw new CLException("Cannot cast to ASTLimit.");
+    }
+  }
+
 }
@@ -22,52 +22,67 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.Scanner;
-
-import org.apache.commons.lang3.StringEscapeUtils;
+import java.util.NoSuchElementException;
 
 import cloudlens.block.BlockEngine;
 import cloudlens.block.BlockException;
 import cloudlens.block.BlockObject;
+import cloudlens.block.LazyEntry;
 import cloudlens.parser.FileReader;
+import cloudlens.parser.JsonArrayReader;
 
 public class CLIterator implements Iterator<BlockObject> {
   public boolean withHistory;
-  public ArrayList<BlockObject> history;
+  // memory budget of the history, in bytes (0 if none)
+  public long budget = 0;
+  // the history is stored compactly (see HistoryStore)
+  public boolean compact = false;
+  // scripts may keep references to the entries (see CL.retains)
+  public boolean retains = false;
+  // the history this iterator traverses, if any
+  public HistoryStore base = null;
+  // the window of the history to keep in streaming mode (null if all)
+  public HistoryStore.Retention retention = null;
+  public HistoryStore history;
+  // entries arrive as they are written: do not read ahead of them
+  public boolean live = false;
+  private final BlockEngine engine;
   private Iterator<BlockObject> it;
-  private ArrayList<BlockObject> mem;
+  private HistoryStore mem;
+  // it iterates over history: there is nothing new to record
+  private boolean replay = false;
 
   public CLIterator() {
+    this.engine = null;
     this.it = Collections.emptyIterator();
-    this.mem = new ArrayList<>();
-    this.history = new ArrayList<>();
+    this.history = new HistoryStore(null);
     this.withHistory = false;
   }
 
   public CLIterator(BlockEngine engine, Iterator<BlockObject> it,
       boolean withHistory) {
+    this.engine = engine;
     this.it = it;
-    this.mem = new ArrayList<>();
-    this.history = new ArrayList<>();
+    this.history = new HistoryStore(engine);
     this.withHistory = withHistory;
   }
 
   public CLIterator(BlockEngine engine, BlockObject array,
       boolean withHistory) {
+    this.engine = engine;
     this.it = array.asList();
-    this.history = new ArrayList<>();
-    this.mem = new ArrayList<>();
+    this.history = new HistoryStore(engine);
     this.withHistory = withHistory;
   }
 
-  public CLIterator(BlockEngine engine, ArrayList<BlockObject> array,
+  public CLIterator(BlockEngine engine, HistoryStore history,
       boolean withHistory) {
-    this.it = array.iterator();
-    this.history = new ArrayList<>(array);
-    this.mem = new ArrayList<>();
+    this.engine = engine;
+    this.it = history.iterator();
+    this.history = history;
+    this.replay = true;
     this.withHistory = withHistory;
   }
 
@@ -79,16 +94,34 @@ public class CLIterator implements Iterator<BlockObject> {
   @Override
   public BlockObject next() {
     final BlockObject v = it.next();
-    if (withHistory) {
-      mem.add(v);
+    if (withHistory && !replay) {
+      recording().add(v);
     }
     return v;
   }
 
+  // the history of the entries returned so far
+  public HistoryStore recording() {
+    if (mem == null) {
+      mem = new HistoryStore(engine, budget, compact, base);
+      if (retains) {
+        mem.keepSeen();
+      }
+      if (retention != null) {
+        mem.retain(retention);
+      }
+    }
+    return mem;
+  }
+
+  // the entries are materialized again by the next traversal
   private void restart() {
-    it = new ArrayList<>(mem).iterator();
-    history = mem;
-    mem = new ArrayList<>();
+    if (!replay) {
+      history = (mem != null) ? mem : new HistoryStore(engine, budget);
+      mem = null;
+      replay = true;
+    }
+    it = history.iterator();
   }
 
   public void iterate() {
@@ -98,81 +131,171 @@ public class CLIterator implements Iterator<BlockObject> {
     restart();
   }
 
-  public static CLIterator source(BlockEngine engine, InputStream inputStream,
-      boolean withHistory) {
-    final BlockObject wrap = engine
-        .eval("function(message) { return {message:message}; }");
+  public static CLIterator source(BlockEngine engine, Iterator<String> lines,
+      boolean withHistory, long budget, boolean compact) {
+    if (withHistory) {
+      // store the lines without building their JS objects
+      final HistoryStore store = new HistoryStore(engine, budget, compact,
+          null);
+      while (lines.hasNext()) {
+        store.add(lines.next());
+      }
+      return new CLIterator(engine, store, true);
+    }
     final CLIterator res = new CLIterator(engine, new Iterator<BlockObject>() {
-      final Scanner scan = new Scanner(inputStream);
+      @Override
+      public boolean hasNext() {
+        return lines.hasNext();
+      }
 
       @Override
-      protected void finalize() throws IOException {
-        if (scan != null) {
-          scan.close();
-        }
+      public BlockObject next() {
+        return new LazyEntry(engine, lines.next());
       }
+    }, false);
+    return res;
+  }
+
+  public static CLIterator source(BlockEngine engine, InputStream inputStream,
+      boolean withHistory, long budget, boolean compact) {
+    return source(engine, FileReader.lines(inputStream), withHistory, budget,
+        compact);
+  }
+
+  public static CLIterator source(BlockEngine engine, String urlString,
+      boolean withHistory, long budget, boolean compact) {
+    return source(engine, FileReader.fetchLines(urlString), withHistory,
+        budget, compact);
+  }
 
+  public static CLIterator json(BlockEngine engine, InputStream inputStream,
+      String path, boolean withHistory, long budget, boolean compact) {
+    if (path != null && !JsonArrayReader.isPlain(path)) {
+      final CLIterator res = new CLIterator(engine,
+          evaluate(engine, inputStream, path), withHistory);
+      res.budget = budget;
+      res.compact = compact;
+      if (withHistory) {
+        res.iterate();
+      }
+      return res;
+    }
+    final BlockObject parse = engine
+        .eval("function(text) { return JSON.parse(text); }");
+    final JsonArrayReader elements = new JsonArrayReader(
+        new BufferedReader(new InputStreamReader(inputStream)), path);
+    final CLIterator res = new CLIterator(engine, new Iterator<BlockObject>() {
       @Override
       public boolean hasNext() {
-        return scan.hasNext();
+        return elements.hasNext();
       }
 
       @Override
       public BlockObject next() {
-        final BlockObject record = wrap.call(scan.nextLine());
-        return record;
+        final String text = elements.next();
+        try {
+          return parse.call(text);
+        } catch (final BlockException e) {
+          throw new CLException("Parse Error: invalid JSON at line "
+              + elements.line() + ":\n" + e.getMessage());
+        }
       }
     }, withHistory);
+    res.budget = budget;
+    res.compact = compact;
     if (withHistory) {
       res.iterate();
     }
-    ;
     return res;
   }
 
-  public static CLIterator source(BlockEngine engine, String urlString,
-      boolean withHistory) {
-    final InputStream inputStream = FileReader.fetchFile(urlString);
-    return source(engine, inputStream, withHistory);
-  }
-
-  public static CLIterator json(BlockEngine engine, InputStream inputStream,
-      String path, boolean withHistory) {
-    try {
-      final InputStreamReader isr = new InputStreamReader(inputStream);
-      final BufferedReader rd = new BufferedReader(isr);
+  // the elements of the array at a path that is not plain (see
+  // JsonArrayReader), evaluated as JS on the whole document
+  private static Iterator<BlockObject> evaluate(BlockEngine engine,
+      InputStream inputStream, String path) {
+    final StringBuilder sb = new StringBuilder();
+    try (BufferedReader rd = new BufferedReader(
+        new InputStreamReader(inputStream))) {
       String line;
-      final StringBuilder sb = new StringBuilder();
       while ((line = rd.readLine()) != null) {
         sb.append(line);
       }
-      final String s = StringEscapeUtils.escapeEcmaScript(sb.toString());
-      try {
-        final String jsonPath = (path == null) ? "" : "." + path;
-        final BlockObject jsStream = engine
-            .eval("JSON.parse(\"" + s + "\")" + jsonPath);
-        if (!engine.isArray(jsStream)) {
-          throw new BlockException(
-              "Parse Error: the log stream " + path + " must be a json Array");
-        }
-        final CLIterator res = new CLIterator(engine, jsStream.asList(),
-            withHistory);
-        if (withHistory) {
-          res.iterate();
-        }
-        return res;
-      } catch (final BlockException e) {
-        throw new CLException(e.getMessage());
-      }
     } catch (final IOException e) {
       throw new CLException(e.getMessage());
     }
+    try {
+      final BlockObject jsStream = engine
+          .eval("(function(text) { return JSON.parse(text)." + path + "; })")
+          .call(sb.toString());
+      if (!engine.isArray(jsStream)) {
+        throw new CLException(
+            "Parse Error: the log stream " + path + " must be a json Array");
+      }
+      return jsStream.asList();
+    } catch (final BlockException e) {
+      throw new CLException(e.getMessage());
+    }
   }
 
   public static CLIterator json(BlockEngine engine, String urlString,
-      String path, boolean withHistory) {
+      String path, boolean withHistory, long budget, boolean compact) {
     final InputStream inputStream = FileReader.fetchFile(urlString);
-    return json(engine, inputStream, path, withHistory);
+    return json(engine, inputStream, path, withHistory, budget, compact);
+  }
+
+  public static CLIterator jsonl(BlockEngine engine, Iterator<String> lines,
+      boolean withHistory, long budget, boolean compact) {
+    final BlockObject parse = engine
+        .eval("function(text) { return JSON.parse(text); }");
+    final CLIterator res = new CLIterator(engine, new Iterator<BlockObject>() {
+      int line = 0;
+      String next = null;
+
+      @Override
+      public boolean hasNext() {
+        while (next == null && lines.hasNext()) {
+          final String text = lines.next();
+          line++;
+          if (!text.trim().isEmpty()) {
+            next = text;
+          }
+        }
+        return next != null;
+      }
+
+      @Override
+      public BlockObject next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final String text = next;
+        next = null;
+        try {
+          return parse.call(text);
+        } catch (final BlockException e) {
+          throw new CLException("Parse Error: invalid JSON at line " + line
+              + ":\n" + e.getMessage());
+        }
+      }
+    }, withHistory);
+    res.budget = budget;
+    res.compact = compact;
+    if (withHistory) {
+      res.iterate();
+    }
+    return res;
+  }
+
+  public static CLIterator jsonl(BlockEngine engine, InputStream inputStream,
+      boolean withHistory, long budget, boolean compact) {
+    return jsonl(engine, FileReader.lines(inputStream), withHistory, budget,
+        compact);
+  }
+
+  public static CLIterator jsonl(BlockEngine engine, String urlString,
+      boolean withHistory, long budget, boolean compact) {
+    return jsonl(engine, FileReader.fetchLines(urlString), withHistory,
+        budget, compact);
   }
 
 }
@@ -0,0 +1,1169 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.engine;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import cloudlens.block.BlockEngine;
+import cloudlens.block.BlockObject;
+import cloudlens.block.LazyEntry;
+
+// The history of a log in table mode. By default, the entries are kept as
+// they are added (JS objects, or lazy entries not used by a script yet), so
+// that a later traversal returns the same objects, with the changes made to
+// them since.
+//
+// A compact store instead encodes the entries whose fields are strings,
+// numbers, booleans or null into byte array segments, and reads them back as
+// new lazy entries one at a time when a traversal reaches them. Other entries
+// (nested objects, arrays, ...) are kept as JS objects. An entry is encoded
+// when it is added, i.e. once the pipeline is done with it. The entries
+// returned by toArray are encoded again, with the changes made to them, by
+// the next read of the store. When scripts may keep references to entries
+// and change them later (see JSAnalysis), the store keeps the entries that
+// scripts have seen as JS objects, so that these changes are recorded.
+//
+// Traversals read the store through independent cursors, without copying it.
+// Closed segments never change, so the store built by a traversal shares the
+// bytes of the entries that come back from the traversal unchanged.
+//
+// Short strings captured in a field are stored once per field, in a bounded
+// dictionary shared by the stores built from one another, and entries refer
+// to them by index. Decoding returns the same String instance for equal
+// values.
+//
+// With a memory budget (compact stores only), the oldest segments are written
+// to a temporary file once the segments in memory exceed the budget, and are
+// read back one at a time by cursors. The file is deleted once no store uses
+// it, or at exit.
+public class HistoryStore implements Iterable<BlockObject> {
+  private static final int SEGMENT = 1 << 20;
+  // entries read by cursors that may be shared by the next store
+  private static final int RECENT = 1024;
+  private static final Pattern budgetSize = Pattern
+      .compile("(\\d+)([kKmMgG]?)[bB]?");
+
+  private static final byte NULL = 0;
+  private static final byte FALSE = 1;
+  private static final byte TRUE = 2;
+  private static final byte INT = 3;
+  private static final byte LONG = 4;
+  private static final byte DOUBLE = 5;
+  private static final byte ASCII = 6;
+  private static final byte UTF8 = 7;
+  private static final byte DICTIONARY = 8;
+
+  // the string values of a captured field that are stored once, and referred
+  // to by index. A value is added the first time it is seen, and referred to
+  // from then on. A field whose first TRIAL values are mostly distinct (e.g. a
+  // request id) stops adding values.
+  private static class Dictionary {
+    static final int MAX_VALUES = 1 << 12;
+    static final int MAX_LENGTH = 256;
+    static final int TRIAL = 1 << 10;
+
+    final Map<String, Integer> ids = new HashMap<>();
+    final List<String> values = new ArrayList<>();
+    int lookups = 0;
+    boolean enabled = true;
+
+    // the index of s, or -1 if s is stored inline
+    int id(String s) {
+      if (s.length() > MAX_LENGTH) {
+        return -1;
+      }
+      final Integer id = ids.get(s);
+      if (id != null) {
+        return id;
+      }
+      if (enabled && values.size() < MAX_VALUES) {
+        ids.put(s, values.size());
+        values.add(s);
+      }
+      if (++lookups == TRIAL && values.size() > TRIAL / 2) {
+        enabled = false;
+      }
+      return -1;
+    }
+  }
+
+  // field names and value dictionaries, shared with the stores built from
+  // this one
+  private static class Fields {
+    final List<String> names = new ArrayList<>();
+    final Map<String, Integer> ids = new HashMap<>();
+    final List<Dictionary> dictionaries = new ArrayList<>();
+    int message = -1;
+
+    int id(String name) {
+      Integer id = ids.get(name);
+      if (id == null) {
+        id = names.size();
+        names.add(name);
+        ids.put(name, id);
+        dictionaries.add(new Dictionary());
+      }
+      return id;
+    }
+  }
+
+  // a segment is in memory (data) or in a spill file (file, offset)
+  private static class Segment {
+    byte[] data;
+    int capacity;
+    int length;
+    SpillFile file;
+    long offset;
+  }
+
+  // where a cursor read an entry
+  private static class Origin {
+    final Segment segment;
+    final byte[] data;
+    final int offset;
+    final int length;
+
+    Origin(Segment segment, byte[] data, int offset, int length) {
+      this.segment = segment;
+      this.data = data;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  // the origins of the last entries read by cursors, by JS object
+  private static class Recent extends LinkedHashMap<Object, Origin> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Object, Origin> eldest) {
+      return size() > RECENT;
+    }
+  }
+
+  // the last segment read back from disk by a cursor
+  private static class Cursor {
+    Segment cached = null;
+    byte[] cache = null;
+  }
+
+  private final BlockEngine engine;
+  private final long budget;
+  // entries are encoded into segments
+  private final boolean compact;
+  private final WeakReference<HistoryStore> base;
+  private final Fields fields;
+
+  // the segments of the entries, including segments shared with other
+  // stores, and their index in this list
+  private final List<Segment> segments = new ArrayList<>();
+  private final Map<Segment, Integer> segmentIds = new IdentityHashMap<>();
+  // closed segments in memory, oldest first
+  private final ArrayDeque<Segment> resident = new ArrayDeque<>();
+  private Segment segment = null;
+  private int used = 0;
+  private long memory = 0;
+  private long bytes = 0;
+  private long shared = 0;
+  private SpillFile spill = null;
+
+  private final Recent recent = new Recent();
+
+  // segment << 32 | offset of an encoded entry, or -(index + 1) of an entry
+  // kept in live, in a ring from start
+  private long[] entries = new long[1024];
+  private int start = 0;
+  private int size = 0;
+  // null once dropped from a retention window
+  private List<BlockObject> live = new ArrayList<>();
+  private int objects = 0;
+  // the entries that scripts have seen are kept as JS objects
+  private boolean keepSeen = false;
+  // the entries returned by the last toArray, by index (null if kept in
+  // live), to encode again with their changes
+  private List<BlockObject> handed = null;
+
+  // the window of entries to keep, if any, with the number of entries in each
+  // segment and the time of each entry
+  private Retention retention = null;
+  private int[] segmentEntries;
+  private long[] times;
+  private long latest = Long.MIN_VALUE;
+  private final Cursor evicted = new Cursor();
+
+  private byte[] scratch = new byte[256];
+  private int length;
+
+  // a compact store
+  public HistoryStore(BlockEngine engine) {
+    this(engine, 0, true, null);
+  }
+
+  // a compact store, without budget if 0
+  public HistoryStore(BlockEngine engine, long budget) {
+    this(engine, budget, true, null);
+  }
+
+  public HistoryStore(BlockEngine engine, long budget, HistoryStore base) {
+    this(engine, budget, true, base);
+  }
+
+  // entries read from base and added unchanged share its segments
+  public HistoryStore(BlockEngine engine, long budget, boolean compact,
+      HistoryStore base) {
+    this.engine = engine;
+    this.budget = budget;
+    this.compact = compact;
+    this.base = new WeakReference<>(base);
+    this.fields = (base != null) ? base.fields : new Fields();
+  }
+
+  // a size in bytes, e.g. 512m or 2g
+  public static long parseBudget(String text) {
+    final Matcher m = budgetSize.matcher(text.trim());
+    if (!m.matches()) {
+      throw new CLException("Invalid memory budget: " + text);
+    }
+    final int shift = "kmg"
+        .indexOf(Character.toLowerCase((m.group(2) + " ").charAt(0)));
+    try {
+      return Math.multiplyExact(Long.parseLong(m.group(1)),
+          1L << (10 * (shift + 1)));
+    } catch (final ArithmeticException | NumberFormatException e) {
+      throw new CLException("Invalid memory budget: " + text);
+    }
+  }
+
+  // the last entries of a stream to keep: a number of entries, or the
+  // entries whose time (in ms, e.g. a Date capture) is within window of the
+  // latest time. Entries without a time take the time of the entry before.
+  public static class Retention {
+    private static final Pattern retain = Pattern
+        .compile("(\\d+)(ms|s|m|h|d)?");
+
+    public final int count;
+    public final long window;
+    public final String field;
+
+    private Retention(int count, long window, String field) {
+      this.count = count;
+      this.window = window;
+      this.field = field;
+    }
+
+    // e.g. 10000 entries, or 15m of field
+    public static Retention parse(String text, String field) {
+      final Matcher m = retain.matcher(text.trim());
+      try {
+        if (m.matches() && m.group(2) == null) {
+          final int count = Integer.parseInt(m.group(1));
+          if (count > 0) {
+            return new Retention(count, 0, null);
+          }
+        } else if (m.matches()) {
+          if (field == null) {
+            throw new CLException(
+                "A retention time window requires a time field.");
+          }
+          final long unit;
+          switch (m.group(2)) {
+          case "ms":
+            unit = 1;
+            break;
+          case "s":
+            unit = 1000;
+            break;
+          case "m":
+            unit = 60 * 1000;
+            break;
+          case "h":
+            unit = 60 * 60 * 1000;
+            break;
+          default:
+            unit = 24 * 60 * 60 * 1000;
+          }
+          return new Retention(0, Math.multiplyExact(
+              Long.parseLong(m.group(1)), unit), field);
+        }
+      } catch (final ArithmeticException | NumberFormatException e) {
+        // invalid
+      }
+      throw new CLException("Invalid retention: " + text);
+    }
+  }
+
+  // keeps only the window of the entries added from now on
+  public void retain(Retention retention) {
+    this.retention = retention;
+    segmentEntries = new int[Math.max(segments.size(), 16)];
+    times = new long[entries.length];
+  }
+
+  // keeps the entries that scripts have seen (or will see, e.g. through
+  // toArray) as JS objects from now on
+  public void keepSeen() {
+    keepSeen = true;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private long entry(int i) {
+    return entries[(start + i) & (entries.length - 1)];
+  }
+
+  private void setEntry(int i, long entry) {
+    entries[(start + i) & (entries.length - 1)] = entry;
+  }
+
+  private void append(long entry) {
+    if (size == entries.length) {
+      final long[] grown = new long[2 * size];
+      for (int i = 0; i < size; i++) {
+        grown[i] = entry(i);
+      }
+      if (times != null) {
+        final long[] t = new long[2 * size];
+        for (int i = 0; i < size; i++) {
+          t[i] = times[(start + i) & (entries.length - 1)];
+        }
+        times = t;
+      }
+      entries = grown;
+      start = 0;
+    }
+    setEntry(size++, entry);
+    if (retention != null && entry >= 0) {
+      segmentEntries[(int) (entry >>> 32)]++;
+    }
+  }
+
+  private void keep(BlockObject entry) {
+    live.add(entry);
+    objects++;
+    append(-live.size());
+  }
+
+  // records the time of the entry just added, and drops the entries out of
+  // the window
+  private void retained(BlockObject entry) {
+    if (retention == null) {
+      return;
+    }
+    if (retention.field != null) {
+      final Object time = (entry != null && entry.isMap())
+          ? entry.get(retention.field).internalObject() : null;
+      if (time instanceof Number) {
+        latest = Math.max(latest, ((Number) time).longValue());
+      }
+      times[(start + size - 1) & (entries.length - 1)] = latest;
+    }
+    while (size > 0 && ((retention.count > 0 && size > retention.count)
+        || (retention.field != null && latest != Long.MIN_VALUE
+            && times[start] < latest - retention.window))) {
+      evict();
+    }
+  }
+
+  private void evict() {
+    settle();
+    final long entry = entry(0);
+    if (entry < 0) {
+      live.set((int) (-entry - 1), null);
+      objects--;
+    } else {
+      drop(entry);
+    }
+    start = (start + 1) & (entries.length - 1);
+    size--;
+    if (live.size() > 1024 && objects < live.size() / 2) {
+      compact();
+    }
+  }
+
+  // an encoded entry is no longer referred to
+  private void drop(long entry) {
+    final int id = (int) (entry >>> 32);
+    final Segment s = segments.get(id);
+    final Reader reader = new Reader(fields, load(s, evicted), (int) entry);
+    reader.skipEntry();
+    bytes -= reader.pos - (int) entry;
+    if (retention != null && --segmentEntries[id] == 0 && s != segment) {
+      release(id);
+    }
+  }
+
+  // a segment without entries left
+  private void release(int id) {
+    final Segment s = segments.get(id);
+    segments.set(id, null);
+    segmentIds.remove(s);
+    if (resident.remove(s)) {
+      memory -= s.capacity;
+    }
+  }
+
+  // drops the entries of live that left the window
+  private void compact() {
+    final List<BlockObject> kept = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      final long entry = entry(i);
+      if (entry < 0) {
+        kept.add(live.get((int) (-entry - 1)));
+        setEntry(i, -kept.size());
+      }
+    }
+    live = kept;
+  }
+
+  private static boolean isLazy(BlockObject entry) {
+    return entry instanceof LazyEntry && ((LazyEntry) entry).isLazy();
+  }
+
+  // encodes an entry into scratch, false if it cannot be
+  private boolean encode(BlockObject entry) {
+    length = 0;
+    if (isLazy(entry)) {
+      // without building its JS object
+      final LazyEntry lazy = (LazyEntry) entry;
+      writeInt(lazy.fields());
+      for (int i = 0; i < lazy.fields(); i++) {
+        if (!write(lazy.key(i), lazy.value(i))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    if (!entry.isPlainObject()) {
+      return false;
+    }
+    final Map<String, Object> map = entry.asMap();
+    writeInt(map.size());
+    for (final Map.Entry<String, Object> field : map.entrySet()) {
+      if (!write(field.getKey(), field.getValue())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public void add(BlockObject entry) {
+    if (!compact || keepSeen && !isLazy(entry) || !encode(entry)) {
+      keep(entry);
+      retained(entry);
+      return;
+    }
+    final HistoryStore from = base.get();
+    final Origin origin = (from != null) ? from.recent.remove(key(entry))
+        : null;
+    if (origin != null && unchanged(origin)) {
+      share(origin);
+    } else {
+      store();
+    }
+    retained(entry);
+  }
+
+  // a log line, without building its JS object
+  public void add(String message) {
+    if (!compact) {
+      keep(new LazyEntry(engine, message));
+      retained(null);
+      return;
+    }
+    if (fields.message < 0) {
+      fields.message = fields.id("message");
+    }
+    length = 0;
+    writeInt(1);
+    writeInt(fields.message);
+    write(fields.message, message);
+    store();
+    retained(null);
+  }
+
+  // entries read from a store are lazy: the same wrapper comes back
+  private static Object key(BlockObject entry) {
+    return (entry instanceof LazyEntry) ? entry : entry.internalObject();
+  }
+
+  private boolean unchanged(Origin origin) {
+    if (origin.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (origin.data[origin.offset + i] != scratch[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int segmentId(Segment s) {
+    Integer id = segmentIds.get(s);
+    if (id == null) {
+      id = segments.size();
+      segments.add(s);
+      segmentIds.put(s, id);
+      if (segmentEntries != null && id == segmentEntries.length) {
+        segmentEntries = Arrays.copyOf(segmentEntries, 2 * id);
+      }
+      if (s.data != null && s != segment) {
+        makeRoom(s.capacity);
+        resident.add(s);
+        memory += s.capacity;
+      }
+    }
+    return id;
+  }
+
+  private void share(Origin origin) {
+    append(((long) segmentId(origin.segment) << 32) | origin.offset);
+    bytes += length;
+    shared += length;
+  }
+
+  private void store() {
+    append(put());
+  }
+
+  // writes scratch into the current segment
+  private long put() {
+    if (segment == null || used + length > segment.capacity) {
+      if (segment != null && retention != null
+          && segmentEntries[segmentIds.get(segment)] == 0) {
+        release(segmentIds.get(segment));
+      } else if (segment != null) {
+        resident.add(segment);
+      }
+      final int n = Math.max(SEGMENT, length);
+      makeRoom(n);
+      segment = new Segment();
+      segment.data = new byte[n];
+      segment.capacity = n;
+      memory += n;
+      used = 0;
+      segmentId(segment);
+    }
+    System.arraycopy(scratch, 0, segment.data, used, length);
+    segment.length = used + length;
+    final long entry = ((long) segmentId(segment) << 32) | used;
+    used += length;
+    bytes += length;
+    return entry;
+  }
+
+  // spills the oldest segments until n more bytes fit in the budget
+  private void makeRoom(int n) {
+    while (budget > 0 && memory + n > budget && !resident.isEmpty()) {
+      final Segment s = resident.poll();
+      if (s.data != null) {
+        spill(s);
+      }
+      memory -= s.capacity;
+    }
+  }
+
+  private void spill(Segment s) {
+    try {
+      if (spill == null) {
+        spill = new SpillFile();
+      }
+      final long offset = spill.channel.size();
+      final ByteBuffer buffer = ByteBuffer.wrap(s.data, 0, s.length);
+      while (buffer.hasRemaining()) {
+        spill.channel.write(buffer, offset + buffer.position());
+      }
+      s.file = spill;
+      s.offset = offset;
+      s.data = null;
+    } catch (final IOException e) {
+      throw new CLException(
+          "Cannot write history to disk: " + e.getMessage());
+    }
+  }
+
+  private static byte[] load(Segment s, Cursor cursor) {
+    final byte[] data = s.data;
+    if (data != null) {
+      return data;
+    }
+    if (cursor.cached != s) {
+      try {
+        final byte[] bytes = new byte[s.length];
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+          if (s.file.channel.read(buffer,
+              s.offset + buffer.position()) < 0) {
+            throw new IOException("unexpected end of file");
+          }
+        }
+        cursor.cache = bytes;
+        cursor.cached = s;
+      } catch (final IOException e) {
+        throw new CLException(
+            "Cannot read history from disk: " + e.getMessage());
+      }
+    }
+    return cursor.cache;
+  }
+
+  private void reserve(int n) {
+    if (length + n > scratch.length) {
+      scratch = Arrays.copyOf(scratch,
+          Math.max(length + n, 2 * scratch.length));
+    }
+  }
+
+  private void writeByte(int b) {
+    reserve(1);
+    scratch[length++] = (byte) b;
+  }
+
+  // unsigned varint
+  private void writeInt(int n) {
+    reserve(5);
+    while ((n & ~0x7F) != 0) {
+      scratch[length++] = (byte) ((n & 0x7F) | 0x80);
+      n >>>= 7;
+    }
+    scratch[length++] = (byte) n;
+  }
+
+  private void writeLong(long n) {
+    reserve(8);
+    for (int i = 56; i >= 0; i -= 8) {
+      scratch[length++] = (byte) (n >>> i);
+    }
+  }
+
+  private boolean write(String name, Object value) {
+    final int id = fields.id(name);
+    writeInt(id);
+    return write(id, value);
+  }
+
+  private boolean write(int field, Object value) {
+    if (value == null) {
+      writeByte(NULL);
+    } else if (value instanceof Boolean) {
+      writeByte((Boolean) value ? TRUE : FALSE);
+    } else if (value instanceof Integer) {
+      writeByte(INT);
+      final int n = (Integer) value;
+      writeInt((n << 1) ^ (n >> 31));
+    } else if (value instanceof Long) {
+      writeByte(LONG);
+      writeLong((Long) value);
+    } else if (value instanceof Double) {
+      writeByte(DOUBLE);
+      writeLong(Double.doubleToRawLongBits((Double) value));
+    } else if (value instanceof String) {
+      write(field, (String) value);
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  private void write(int field, String s) {
+    final int id = (field == fields.message) ? -1
+        : fields.dictionaries.get(field).id(s);
+    if (id >= 0) {
+      writeByte(DICTIONARY);
+      writeInt(id);
+      return;
+    }
+    final int n = s.length();
+    boolean ascii = true;
+    for (int i = 0; i < n && ascii; i++) {
+      ascii = s.charAt(i) < 0x80;
+    }
+    if (ascii) {
+      writeByte(ASCII);
+      writeInt(n);
+      reserve(n);
+      for (int i = 0; i < n; i++) {
+        scratch[length++] = (byte) s.charAt(i);
+      }
+    } else {
+      final byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+      writeByte(UTF8);
+      writeInt(utf8.length);
+      reserve(utf8.length);
+      System.arraycopy(utf8, 0, scratch, length, utf8.length);
+      length += utf8.length;
+    }
+  }
+
+  // reads an entry back from its segment
+  private static class Reader {
+    private final Fields fields;
+    private final byte[] data;
+    private int pos;
+
+    Reader(Fields fields, byte[] data, int pos) {
+      this.fields = fields;
+      this.data = data;
+      this.pos = pos;
+    }
+
+    int readInt() {
+      int n = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = data[pos++];
+        n |= (b & 0x7F) << shift;
+        shift += 7;
+      } while (b < 0);
+      return n;
+    }
+
+    long readLong() {
+      long n = 0;
+      for (int i = 0; i < 8; i++) {
+        n = (n << 8) | (data[pos++] & 0xFF);
+      }
+      return n;
+    }
+
+    Object read(int field) {
+      final byte tag = data[pos++];
+      switch (tag) {
+      case NULL:
+        return null;
+      case FALSE:
+        return false;
+      case TRUE:
+        return true;
+      case INT:
+        final int n = readInt();
+        return (n >>> 1) ^ -(n & 1);
+      case LONG:
+        return readLong();
+      case DOUBLE:
+        return Double.longBitsToDouble(readLong());
+      case DICTIONARY:
+        return fields.dictionaries.get(field).values.get(readInt());
+      default:
+        final int len = readInt();
+        final String s = new String(data, pos, len,
+            (tag == ASCII) ? StandardCharsets.ISO_8859_1
+                : StandardCharsets.UTF_8);
+        pos += len;
+        return s;
+      }
+    }
+
+    void skip() {
+      final byte tag = data[pos++];
+      switch (tag) {
+      case NULL:
+      case FALSE:
+      case TRUE:
+        break;
+      case INT:
+      case DICTIONARY:
+        readInt();
+        break;
+      case LONG:
+      case DOUBLE:
+        pos += 8;
+        break;
+      default:
+        final int len = readInt();
+        pos += len;
+      }
+    }
+
+    void skipEntry() {
+      final int n = readInt();
+      for (int k = 0; k < n; k++) {
+        readInt();
+        skip();
+      }
+    }
+  }
+
+  private BlockObject get(int i, Cursor cursor, boolean record) {
+    final long entry = entry(i);
+    if (entry < 0) {
+      return live.get((int) (-entry - 1));
+    }
+    final Segment s = segments.get((int) (entry >>> 32));
+    final Reader reader = new Reader(fields, load(s, cursor), (int) entry);
+    final BlockObject res = read(reader);
+    if (record) {
+      recent.put(key(res), new Origin(s, reader.data,
+          (int) entry, reader.pos - (int) entry));
+    }
+    return res;
+  }
+
+  private BlockObject read(Reader reader) {
+    final int n = reader.readInt();
+    final LazyEntry res = new LazyEntry(engine, n);
+    for (int k = 0; k < n; k++) {
+      final int key = reader.readInt();
+      res.put(fields.names.get(key), reader.read(key));
+    }
+    return res;
+  }
+
+  // a cursor over the entries, independent of other cursors
+  @Override
+  public Iterator<BlockObject> iterator() {
+    settle();
+    return new Iterator<BlockObject>() {
+      private final Cursor cursor = new Cursor();
+      private int i = 0;
+
+      @Override
+      public boolean hasNext() {
+        return i < size;
+      }
+
+      @Override
+      public BlockObject next() {
+        if (i >= size) {
+          throw new NoSuchElementException();
+        }
+        settle();
+        return get(i++, cursor, true);
+      }
+    };
+  }
+
+  // all entries as a JS array. The changes made to the objects are encoded
+  // by the next read of the store, or the objects are kept from then on if
+  // the store keeps the entries that scripts have seen.
+  public BlockObject toArray() {
+    settle();
+    final Cursor cursor = new Cursor();
+    final BlockObject array = engine.newArray();
+    final List<BlockObject> read = (compact && !keepSeen)
+        ? new ArrayList<>(size) : null;
+    for (int i = 0; i < size; i++) {
+      final BlockObject entry = get(i, cursor, false);
+      if (entry(i) >= 0 && read == null) {
+        live.add(entry);
+        objects++;
+        setEntry(i, -live.size());
+      }
+      if (read != null) {
+        read.add((entry(i) >= 0) ? entry : null);
+      }
+      array.push(entry);
+    }
+    handed = read;
+    return array;
+  }
+
+  // encodes the entries returned by toArray again, or keeps them as JS
+  // objects if they cannot be
+  private void settle() {
+    if (handed == null) {
+      return;
+    }
+    final List<BlockObject> read = handed;
+    handed = null;
+    final Cursor cursor = new Cursor();
+    for (int i = 0; i < read.size(); i++) {
+      final BlockObject entry = read.get(i);
+      if (entry == null || isLazy(entry)) {
+        continue;
+      }
+      final long old = entry(i);
+      if (!encode(entry)) {
+        drop(old);
+        live.add(entry);
+        objects++;
+        setEntry(i, -live.size());
+        continue;
+      }
+      final Segment s = segments.get((int) (old >>> 32));
+      final Reader reader = new Reader(fields, load(s, cursor), (int) old);
+      reader.skipEntry();
+      if (!unchanged(new Origin(s, reader.data, (int) old,
+          reader.pos - (int) old))) {
+        drop(old);
+        final long moved = put();
+        setEntry(i, moved);
+        if (retention != null) {
+          segmentEntries[(int) (moved >>> 32)]++;
+        }
+      }
+    }
+  }
+
+  // the first n entries as a JS array, materialized again by traversals
+  public BlockObject head(int n) {
+    settle();
+    final Cursor cursor = new Cursor();
+    final BlockObject array = engine.newArray();
+    for (int i = 0; i < Math.min(n, size); i++) {
+      array.push(get(i, cursor, false));
+    }
+    return array;
+  }
+
+  // bytes used by encoded entries, including their index
+  public long bytes() {
+    settle();
+    return bytes + 8L * size;
+  }
+
+  public int objects() {
+    settle();
+    return objects;
+  }
+
+  // bytes of encoded entries shared with the store this one was built from
+  public long shared() {
+    return shared;
+  }
+
+  // bytes of segments written to disk
+  public long spilled() {
+    long n = 0;
+    for (final Segment s : segments) {
+      if (s != null && s.data == null) {
+        n += s.length;
+      }
+    }
+    return n;
+  }
+
+  // the use of the dictionary of a captured field by the encoded entries
+  public static class FieldStats {
+    public final String field;
+    public final int values;
+    public long uses = 0;
+    // bytes saved over storing the values inline, net of the dictionary
+    public long saved;
+
+    FieldStats(String field, Dictionary dictionary) {
+      this.field = field;
+      this.values = dictionary.values.size();
+      for (final String value : dictionary.values) {
+        saved -= inlineLength(value);
+      }
+    }
+  }
+
+  private static int intLength(int n) {
+    int k = 1;
+    while ((n >>>= 7) != 0) {
+      k++;
+    }
+    return k;
+  }
+
+  private static int inlineLength(String s) {
+    int n = s.length();
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) >= 0x80) {
+        n = s.getBytes(StandardCharsets.UTF_8).length;
+        break;
+      }
+    }
+    return 1 + intLength(n) + n;
+  }
+
+  // the fields whose values are referred to from the dictionary, in field
+  // order. Entries written to disk are read back.
+  public List<FieldStats> dictionaries() {
+    settle();
+    final Map<Integer, FieldStats> stats = new TreeMap<>();
+    final Cursor cursor = new Cursor();
+    for (int i = 0; i < size; i++) {
+      final long entry = entry(i);
+      if (entry < 0) {
+        continue;
+      }
+      final Segment s = segments.get((int) (entry >>> 32));
+      final Reader reader = new Reader(fields, load(s, cursor), (int) entry);
+      final int n = reader.readInt();
+      for (int k = 0; k < n; k++) {
+        final int key = reader.readInt();
+        if (reader.data[reader.pos] != DICTIONARY) {
+          reader.skip();
+          continue;
+        }
+        reader.pos++;
+        final int id = reader.readInt();
+        final Dictionary dictionary = fields.dictionaries.get(key);
+        FieldStats field = stats.get(key);
+        if (field == null) {
+          field = new FieldStats(fields.names.get(key), dictionary);
+          stats.put(key, field);
+        }
+        field.uses++;
+        field.saved += inlineLength(dictionary.values.get(id))
+            - 1 - intLength(id);
+      }
+    }
+    return new ArrayList<>(stats.values());
+  }
+
+  public String report() {
+    final long spilled = spilled();
+    final StringBuilder sb = new StringBuilder();
+    sb.append("History: " + size + " entries, " + bytes() + " bytes"
+        + ((size > 0) ? String.format(" (%.1f bytes/entry)",
+            (double) bytes() / size) : "")
+        + ((shared > 0) ? ", " + shared + " bytes shared" : "")
+        + ((spilled > 0) ? ", " + spilled + " bytes on disk" : "") + ", "
+        + objects() + " kept as JS objects");
+    for (final FieldStats field : dictionaries()) {
+      sb.append("\n  " + field.field + ": " + field.values + " values, "
+          + field.uses + " uses, " + field.saved + " bytes saved");
+    }
+    return sb.toString();
+  }
+
+  // writes the fields and the encoded entries, or returns false if some
+  // entries are kept as JS objects
+  public boolean writeTo(DataOutputStream out) throws IOException {
+    settle();
+    if (objects > 0) {
+      return false;
+    }
+    out.writeInt(fields.names.size());
+    for (int i = 0; i < fields.names.size(); i++) {
+      out.writeUTF(fields.names.get(i));
+      final Dictionary dictionary = fields.dictionaries.get(i);
+      out.writeBoolean(dictionary.enabled);
+      out.writeInt(dictionary.lookups);
+      out.writeInt(dictionary.values.size());
+      for (final String value : dictionary.values) {
+        out.writeUTF(value);
+      }
+    }
+    out.writeInt(fields.message);
+    out.writeInt(size);
+    final Cursor cursor = new Cursor();
+    for (int i = 0; i < size; i++) {
+      final long entry = entry(i);
+      final Segment s = segments.get((int) (entry >>> 32));
+      final Reader reader = new Reader(fields, load(s, cursor), (int) entry);
+      reader.skipEntry();
+      out.writeInt(reader.pos - (int) entry);
+      out.write(reader.data, (int) entry, reader.pos - (int) entry);
+    }
+    return true;
+  }
+
+  // a store written by writeTo
+  public static HistoryStore readFrom(BlockEngine engine, long budget,
+      DataInputStream in) throws IOException {
+    final HistoryStore store = new HistoryStore(engine, budget);
+    final Fields fields = store.fields;
+    final int n = in.readInt();
+    for (int i = 0; i < n; i++) {
+      fields.id(in.readUTF());
+      final Dictionary dictionary = fields.dictionaries.get(i);
+      dictionary.enabled = in.readBoolean();
+      dictionary.lookups = in.readInt();
+      final int values = in.readInt();
+      for (int k = 0; k < values; k++) {
+        final String value = in.readUTF();
+        dictionary.ids.put(value, k);
+        dictionary.values.add(value);
+      }
+    }
+    fields.message = in.readInt();
+    final int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      store.length = 0;
+      final int length = in.readInt();
+      store.reserve(length);
+      in.readFully(store.scratch, 0, length);
+      store.length = length;
+      store.store();
+    }
+    return store;
+  }
+
+  // a temporary file for segments, closed (and deleted) once no segment
+  // refers to it
+  private static class SpillFile {
+    private static final ReferenceQueue<SpillFile> collected =
+        new ReferenceQueue<>();
+    private static final Set<Cleanup> open = Collections
+        .synchronizedSet(new HashSet<>());
+
+    final FileChannel channel;
+
+    private static class Cleanup extends PhantomReference<SpillFile> {
+      final FileChannel channel;
+
+      Cleanup(SpillFile file) {
+        super(file, collected);
+        this.channel = file.channel;
+      }
+    }
+
+    SpillFile() throws IOException {
+      Reference<? extends SpillFile> ref;
+      while ((ref = collected.poll()) != null) {
+        open.remove(ref);
+        try {
+          ((Cleanup) ref).channel.close();
+        } catch (final IOException e) {
+          // ignore
+        }
+      }
+      channel = FileChannel.open(
+          Files.createTempFile("cloudlens-history", ".tmp"),
+          StandardOpenOption.READ, StandardOpenOption.WRITE,
+          StandardOpenOption.DELETE_ON_CLOSE);
+      open.add(new Cleanup(this));
+    }
+  }
+}
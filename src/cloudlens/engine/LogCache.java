@@ -0,0 +1,204 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+
+import cloudlens.block.BlockEngine;
+
+// An on-disk cache of the history of log files after the match rules that
+// start a lens, so that a lens whose later blocks change does not read and
+// match the log again. There is one cache file per log files, reading
+// options and rules; it is replaced when a log file changes (path, size,
+// modification time or CRC32 of its first and last blocks, so that a hit
+// does not read the whole log). The time zone and locale are part of the
+// key, as they change the value of Date captures.
+public class LogCache {
+  private static final int MAGIC = 0x434c4843;
+  private static final int VERSION = 2;
+  // bytes checksummed at each end of a log file
+  private static final int BLOCK = 1 << 16;
+
+  private final Path dir;
+  private final String files;
+  private final String identity;
+
+  // the cached result of the match rules
+  public static class Hit {
+    public final HistoryStore history;
+    // some rule matched
+    public final boolean executed;
+
+    Hit(HistoryStore history, boolean executed) {
+      this.history = history;
+      this.executed = executed;
+    }
+  }
+
+  // options: anything else that changes the entries read from the files
+  public LogCache(String dir, String[] logFiles, String options) {
+    this.dir = Paths.get(dir);
+    final StringBuilder files = new StringBuilder(options);
+    final StringBuilder identity = new StringBuilder();
+    try {
+      for (final String name : logFiles) {
+        final Path path = Paths.get(name).toAbsolutePath().normalize();
+        files.append('\n').append(path);
+        identity.append(Files.size(path)).append(' ')
+            .append(Files.getLastModifiedTime(path).toMillis()).append(' ')
+            .append(crc(path)).append('\n');
+      }
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+    files.append('\n').append(TimeZone.getDefault().getID()).append(' ')
+        .append(Locale.getDefault());
+    this.files = files.toString();
+    this.identity = identity.toString();
+  }
+
+  // the checksum of the first and last blocks of the file
+  private static long crc(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path,
+        StandardOpenOption.READ)) {
+      final CRC32 crc = new CRC32();
+      final ByteBuffer buffer = ByteBuffer.allocate(BLOCK);
+      final long size = channel.size();
+      update(crc, channel, buffer, 0);
+      if (size > BLOCK) {
+        update(crc, channel, buffer, Math.max(BLOCK, size - BLOCK));
+      }
+      return crc.getValue();
+    }
+  }
+
+  private static void update(CRC32 crc, FileChannel channel,
+      ByteBuffer buffer, long position) throws IOException {
+    buffer.clear();
+    int n;
+    while (buffer.hasRemaining()
+        && (n = channel.read(buffer, position)) > 0) {
+      position += n;
+    }
+    buffer.flip();
+    crc.update(buffer);
+  }
+
+  private static String key(String files, List<String> rules) {
+    final StringBuilder sb = new StringBuilder(files);
+    for (final String rule : rules) {
+      sb.append('\n').append(rule);
+    }
+    return sb.toString();
+  }
+
+  private Path file(String key) {
+    try {
+      final byte[] digest = MessageDigest.getInstance("SHA-1")
+          .digest(key.getBytes(StandardCharsets.UTF_8));
+      final StringBuilder name = new StringBuilder();
+      for (final byte b : digest) {
+        name.append(String.format("%02x", b));
+      }
+      return dir.resolve(name + ".clcache");
+    } catch (final NoSuchAlgorithmException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s)
+      throws IOException {
+    final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    final byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // the history after the rules, or null if it is not in the cache
+  public Hit load(BlockEngine engine, long budget, List<String> rules) {
+    final String key = key(files, rules);
+    final Path cache = file(key);
+    if (!Files.exists(cache)) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(cache), 1 << 16))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION
+          || !readString(in).equals(key)
+          || !readString(in).equals(identity)) {
+        return null;
+      }
+      final boolean executed = in.readBoolean();
+      return new Hit(HistoryStore.readFrom(engine, budget, in), executed);
+    } catch (final IOException e) {
+      return null;
+    }
+  }
+
+  // histories with entries kept as JS objects are not cached
+  public void save(HistoryStore history, List<String> rules,
+      boolean executed) {
+    final String key = key(files, rules);
+    final Path cache = file(key);
+    final Path tmp = Paths.get(cache + ".tmp");
+    try {
+      Files.createDirectories(dir);
+      boolean written;
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, key);
+        writeString(out, identity);
+        out.writeBoolean(executed);
+        written = history.writeTo(out);
+      }
+      if (written) {
+        Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING);
+      } else {
+        Files.delete(tmp);
+      }
+    } catch (final IOException e) {
+      throw new CLException("Cannot write log cache: " + e.getMessage());
+    }
+  }
+}
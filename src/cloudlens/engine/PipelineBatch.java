@@ -0,0 +1,279 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.engine;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cloudlens.block.BlockEngine;
+import cloudlens.block.BlockObject;
+import cloudlens.block.LazyEntry;
+
+// Pushes the entries of a pipeline through its stages a batch at a time,
+// instead of pulling them through a chain of iterators (one per stage). Up
+// to size entries are read from the input, each of them goes through all the
+// stages in a loop, and the entries that come out are returned before the
+// next batch is read. Stages share JS state and print as they go, so every
+// entry still goes through all the stages before the next one, as in the
+// chain, and after stages run in order at the end of the input.
+//
+// With several threads, the match stages that start the pipeline are
+// applied to the batch in parallel, each thread with its own copy of the
+// rules, before the entries go through the rest of the pipeline in order.
+// Match rules only read and write the fields of their entry, in Java, while
+// the entry is lazy. Process blocks share the variables of the lens in the
+// JS engine, and always run on the thread of the lens, as do match rules on
+// entries that are JS objects (e.g. json logs).
+public class PipelineBatch implements Iterator<BlockObject> {
+  // the default number of entries in a batch
+  public static final int SIZE = 1024;
+
+  final BlockEngine engine;
+  final PipelineStage[] stages;
+  // the stage expands the arrays it returns
+  private final boolean[] expand;
+  // the input guard of the pipeline (if any) and the limit stages: once one
+  // of them is full, no more entries are read
+  private final List<PipelineStageLimit> limits = new ArrayList<>();
+  final Iterator<BlockObject> input;
+  private final BlockObject[] batch;
+  final List<BlockObject> output = new ArrayList<>();
+  int index = 0;
+  boolean done = false;
+  // the number of match stages that start the pipeline, and a copy of them
+  // for each thread
+  int prefix = 0;
+  private PipelineStageMatch[][] shards = null;
+  private ExecutorService executor = null;
+
+  public PipelineBatch(BlockEngine engine, List<PipelineStage> pipeline,
+      Iterator<BlockObject> input, int size, int threads,
+      PipelineStageLimit head) {
+    this.engine = engine;
+    this.stages = pipeline.toArray(new PipelineStage[pipeline.size()]);
+    this.expand = new boolean[stages.length];
+    if (head != null) {
+      limits.add(head);
+    }
+    for (int i = 0; i < stages.length; i++) {
+      expand[i] = !(stages[i] instanceof PipelineStageAfter);
+      if (stages[i] instanceof PipelineStageLimit) {
+        limits.add((PipelineStageLimit) stages[i]);
+      }
+    }
+    this.input = input;
+    this.batch = new BlockObject[size];
+    while (prefix < stages.length
+        && stages[prefix] instanceof PipelineStageMatch) {
+      prefix++;
+    }
+    if (threads > 1 && size > 1 && prefix > 0) {
+      shards = new PipelineStageMatch[threads][prefix];
+      for (int t = 0; t < threads; t++) {
+        for (int i = 0; i < prefix; i++) {
+          shards[t][i] = ((PipelineStageMatch) stages[i]).copy();
+        }
+      }
+      executor = Executors.newFixedThreadPool(threads, r -> {
+        final Thread t = new Thread(r, "cloudlens-match");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+  }
+
+  // a limit is reached: the entries read but not pushed yet are dropped
+  boolean stopped() {
+    for (final PipelineStageLimit limit : limits) {
+      if (limit.full()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // a limit after stage i is reached, as when the stages that follow it no
+  // longer ask it for entries
+  private boolean cut(int i) {
+    for (int j = i + 1; j < stages.length; j++) {
+      if (stages[j] instanceof PipelineStageLimit
+          && ((PipelineStageLimit) stages[j]).full()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // the entry can be matched on another thread
+  static boolean lazy(BlockObject entry) {
+    return entry instanceof LazyEntry && ((LazyEntry) entry).isLazy();
+  }
+
+  private boolean lazy(int n) {
+    for (int k = 0; k < n; k++) {
+      if (!lazy(batch[k])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // applies the match stages that start the pipeline to the n entries of
+  // the batch, a slice of them on each thread
+  private void match(int n) {
+    final int threads = Math.min(shards.length, n);
+    final List<Future<?>> slices = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final PipelineStageMatch[] shard = shards[t];
+      final int from = t * n / threads;
+      final int to = (t + 1) * n / threads;
+      slices.add(executor.submit(() -> {
+        for (int k = from; k < to; k++) {
+          for (final PipelineStageMatch stage : shard) {
+            stage.step(batch[k]);
+          }
+        }
+      }));
+    }
+    try {
+      for (final Future<?> slice : slices) {
+        slice.get();
+      }
+    } catch (final InterruptedException e) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new CLException(e.getMessage());
+    } catch (final ExecutionException e) {
+      executor.shutdownNow();
+      if (e.getCause() instanceof CLException) {
+        throw (CLException) e.getCause();
+      }
+      throw new CLException(e.getCause().getMessage());
+    }
+    for (int t = 0; t < threads; t++) {
+      for (int i = 0; i < prefix; i++) {
+        stages[i].executed |= shards[t][i].executed;
+        ((PipelineStageMatch) stages[i]).merge(shards[t][i]);
+        for (final PipelineStep step : shards[t][i].processors) {
+          stages[i].executed |= step.executed;
+        }
+      }
+    }
+  }
+
+  // pushes entry through the stages from stage i on; plain if entry is known
+  // not to be an array
+  void push(BlockObject entry, int i, boolean plain) {
+    BlockObject current = entry;
+    for (; i < stages.length; i++) {
+      if (stages[i] instanceof PipelineStageLimit
+          && !((PipelineStageLimit) stages[i]).take(current)) {
+        return;
+      }
+      final BlockObject next = stages[i].step(current);
+      // a stage that returns its entry unchanged did not make an array
+      if (expand[i] && !(plain && next == current)
+          && engine.isArray(next)) {
+        final Iterator<BlockObject> elements = next.asList();
+        while (elements.hasNext()) {
+          push(elements.next(), i + 1, false);
+        }
+        return;
+      }
+      plain = expand[i] || plain;
+      current = next;
+    }
+    output.add(current);
+  }
+
+  // the entries returned by the after stages, pushed through the stages that
+  // follow them
+  void end() {
+    for (int i = 0; i < stages.length; i++) {
+      if (stages[i] instanceof PipelineStageAfter && !cut(i)) {
+        final PipelineStageAfter stage = (PipelineStageAfter) stages[i];
+        final BlockObject current = stage.after.closure.call();
+        stage.executed = true;
+        if (engine.isArray(current)) {
+          final Iterator<BlockObject> elements = current.asList();
+          while (elements.hasNext()) {
+            push(elements.next(), i + 1, false);
+          }
+        } else {
+          push(current, i + 1, false);
+        }
+      }
+    }
+  }
+
+  void fill() {
+    output.clear();
+    index = 0;
+    int n = 0;
+    while (n < batch.length && !stopped() && input.hasNext()) {
+      batch[n++] = input.next();
+    }
+    boolean failed = true;
+    try {
+      int first = 0;
+      if (executor != null && n > 1 && lazy(n)) {
+        match(n);
+        first = prefix;
+      }
+      for (int k = 0; k < n; k++) {
+        if (!stopped()) {
+          push(batch[k], first, first > 0);
+        }
+        batch[k] = null;
+      }
+      if (n < batch.length || stopped()) {
+        end();
+        done = true;
+      }
+      failed = false;
+    } finally {
+      // the threads are no longer needed at the end, or after an error
+      if (executor != null && (done || failed)) {
+        executor.shutdown();
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (index == output.size() && !done) {
+      fill();
+    }
+    return index < output.size();
+  }
+
+  @Override
+  public BlockObject next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return output.get(index++);
+  }
+}
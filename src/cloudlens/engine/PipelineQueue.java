@@ -0,0 +1,153 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.engine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import cloudlens.block.BlockObject;
+
+// A bounded queue of entries between two stages of a pipeline, each on its
+// own thread. With a single producer and a single consumer, the ring needs no
+// lock: the producer alone moves the tail and the consumer alone moves the
+// head. A thread that finds the queue full (or empty) parks briefly and tries
+// again. Depth statistics tell which side of the queue is the bottleneck.
+public class PipelineQueue {
+  private static final long PAUSE = 50000;
+
+  private final BlockObject[] ring;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  private volatile boolean closed = false;
+  private volatile RuntimeException error = null;
+  // the thread of the producer, if it is not the consumer's caller
+  private Thread producer = null;
+
+  // statistics, each written by one side only
+  private long takes = 0;
+  private long depth = 0;
+  private long emptyWaits = 0;
+  private long fullWaits = 0;
+
+  public PipelineQueue(int capacity) {
+    if (capacity < 1) {
+      throw new CLException("Invalid queue capacity: " + capacity);
+    }
+    ring = new BlockObject[capacity];
+  }
+
+  private static void pause() {
+    LockSupport.parkNanos(PAUSE);
+    if (Thread.currentThread().isInterrupted()) {
+      throw new CLException("Pipeline stage interrupted.");
+    }
+  }
+
+  private boolean tryPut(BlockObject entry) {
+    final long t = tail.get();
+    if (t - head.get() == ring.length) {
+      return false;
+    }
+    ring[(int) (t % ring.length)] = entry;
+    tail.lazySet(t + 1);
+    return true;
+  }
+
+  // false if the queue is full
+  public boolean offer(BlockObject entry) {
+    if (tryPut(entry)) {
+      return true;
+    }
+    fullWaits++;
+    return false;
+  }
+
+  public void put(BlockObject entry) {
+    if (!tryPut(entry)) {
+      fullWaits++;
+      do {
+        pause();
+      } while (!tryPut(entry));
+    }
+  }
+
+  // the consumer fails if this thread stops without closing the queue
+  public void producer(Thread thread) {
+    producer = thread;
+  }
+
+  // no more entries
+  public void close() {
+    closed = true;
+  }
+
+  // the producer failed: the consumer throws e
+  public void fail(RuntimeException e) {
+    error = e;
+  }
+
+  // the next entry, or null if there is none yet
+  public BlockObject poll() {
+    final long h = head.get();
+    final long t = tail.get();
+    if (h == t) {
+      if (error != null) {
+        throw error;
+      }
+      return null;
+    }
+    final int slot = (int) (h % ring.length);
+    final BlockObject entry = ring[slot];
+    ring[slot] = null;
+    head.lazySet(h + 1);
+    takes++;
+    depth += t - h;
+    return entry;
+  }
+
+  // the next entry, or null at the end
+  public BlockObject take() {
+    BlockObject entry = poll();
+    if (entry != null) {
+      return entry;
+    }
+    emptyWaits++;
+    while (true) {
+      // a dead producer closed the queue or failed first, if it did
+      final boolean dead = producer != null && !producer.isAlive();
+      // the last entries are put before the queue is closed
+      final boolean last = closed;
+      entry = poll();
+      if (entry != null || last) {
+        return entry;
+      }
+      if (dead) {
+        throw new CLException("Pipeline stage stopped unexpectedly.");
+      }
+      pause();
+    }
+  }
+
+  public String report() {
+    final long average = (takes == 0) ? 0 : depth * 100 / takes / ring.length;
+    return "capacity " + ring.length + " entries, average depth " + average
+        + "%, consumer waited " + emptyWaits + " times, producer waited "
+        + fullWaits + " times";
+  }
+}
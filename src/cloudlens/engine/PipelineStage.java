@@ -34,7 +34,9 @@ public abstract class PipelineStage {
     this.processors = processors;
   }
 
-  private BlockObject apply(BlockObject entry) {
+  // the entry after the processors of this stage (an array of entries
+  // stands for all of them)
+  BlockObject step(BlockObject entry) {
     BlockObject current = entry;
     for (final PipelineStep processor : processors) {
       if (current.isUndefined()) {
@@ -59,11 +61,11 @@ public abstract class PipelineStage {
         if (localIt.hasNext()) {
           return localIt.next();
         } else {
-          final BlockObject current = apply(clIt.next());
+          final BlockObject current = step(clIt.next());
           if (!engine.isArray(current)) {
             return current;
           } else {
-            localIt = new CLIterator(engine, current, clIt.withHistory);
+            localIt = new CLIterator(engine, current, false);
             return localIt.next();
           }
         }
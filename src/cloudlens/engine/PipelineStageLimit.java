@@ -0,0 +1,98 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.engine;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import cloudlens.block.BlockEngine;
+import cloudlens.block.BlockObject;
+import cloudlens.parser.ASTLimit;
+
+// Lets the first n entries through, then ends the pipeline: the stages
+// before it are not asked for more entries, so that the input is not read
+// any further. A limit without a count guards the input of a pipeline, that
+// CL.stop() ends.
+public class PipelineStageLimit extends PipelineStage {
+  public final long limit;
+  private long count = 0;
+  private boolean stop = false;
+
+  public PipelineStageLimit(CLElement e) {
+    super(Collections.emptyList());
+    final ASTLimit ast = e.limit();
+    final BlockObject args = e.closure.call();
+    final Object n = (args.size() == 1) ? args.get(0).internalObject()
+        : null;
+    final double d = (n instanceof Number) ? ((Number) n).doubleValue() : -1;
+    if (d < 0 || d != Math.floor(d)) {
+      throw new CLException("Limit Error: " + ast.file + " line " + ast.line
+          + "\nthe limit must be a non-negative integer");
+    }
+    this.limit = (long) d;
+  }
+
+  PipelineStageLimit() {
+    super(Collections.emptyList());
+    this.limit = Long.MAX_VALUE;
+  }
+
+  // no more entries go through
+  boolean full() {
+    return stop || count >= limit;
+  }
+
+  // ends the pipeline after the entries already read
+  void stop() {
+    stop = true;
+  }
+
+  // lets an entry through, unless the limit is reached. Entries removed by
+  // the stages before are not counted.
+  boolean take(BlockObject entry) {
+    if (full()) {
+      return false;
+    }
+    if (!entry.isUndefined()) {
+      count++;
+    }
+    return true;
+  }
+
+  @Override
+  public CLIterator apply(BlockEngine engine, CLIterator clIt) {
+    return new CLIterator(engine, new Iterator<BlockObject>() {
+      @Override
+      public boolean hasNext() {
+        return !full() && clIt.hasNext();
+      }
+
+      @Override
+      public BlockObject next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final BlockObject entry = clIt.next();
+        take(entry);
+        return entry;
+      }
+    }, false);
+  }
+}
@@ -25,6 +25,18 @@ import cloudlens.block.BlockObject;
 import cloudlens.parser.ASTMatch;
 
 public class PipelineStageMatch extends PipelineStage {
+  // entries between two reorderings of the rules, once adapted
+  private static final long PERIOD = 1024;
+
+  // the rules in the order they are tried, the most frequent hits first
+  // (null to try them in declaration order)
+  private int[] order = null;
+  private long[] hits;
+  // the hits of a copy already added to the rule stats of its original
+  private long[] merged;
+  private long seen = 0;
+  // the order is shown in the profile (the original stage, not a copy)
+  private boolean report = true;
 
   public static List<PipelineStep> getMatchers(CLElement e) {
     final List<PipelineStep> matchers = new ArrayList<>();
@@ -43,4 +55,136 @@ public class PipelineStageMatch extends PipelineStage {
     super(getMatchers(e));
   }
 
+  private PipelineStageMatch(List<PipelineStep> matchers) {
+    super(matchers);
+  }
+
+  // a stage with its own matchers, to match entries on another thread
+  public PipelineStageMatch copy() {
+    final List<PipelineStep> matchers = new ArrayList<>();
+    for (final PipelineStep step : processors) {
+      matchers.add(((PipelineStepPattern) step).copy());
+    }
+    final PipelineStageMatch res = new PipelineStageMatch(matchers);
+    res.report = false;
+    if (order != null) {
+      res.adapt();
+    }
+    return res;
+  }
+
+  // the rules match the same field, which they do not capture, and start
+  // with distinct texts, none the start of another: at most one rule
+  // matches an entry
+  boolean exclusive() {
+    final List<String> prefixes = new ArrayList<>();
+    final String upon = ((PipelineStepPattern) processors.get(0)).upon();
+    for (final PipelineStep step : processors) {
+      final PipelineStepPattern rule = (PipelineStepPattern) step;
+      final String prefix = rule.prefix();
+      if (!rule.upon().equals(upon) || prefix == null || prefix.isEmpty()
+          || rule.captures().contains(rule.field())) {
+        return false;
+      }
+      for (final String other : prefixes) {
+        if (other.startsWith(prefix) || prefix.startsWith(other)) {
+          return false;
+        }
+      }
+      prefixes.add(prefix);
+    }
+    return true;
+  }
+
+  // try the rules in the order of their hit rates, and no more once one
+  // matches, if they are exclusive
+  public void adapt() {
+    final int n = processors.size();
+    if (n < 2 || !exclusive()) {
+      return;
+    }
+    order = new int[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+    }
+    hits = new long[n];
+    merged = new long[n];
+    ranks();
+  }
+
+  // adds the hits of a copy since the last merge, and orders the rules of
+  // this stage by the hits of both
+  void merge(PipelineStageMatch copy) {
+    if (order == null) {
+      return;
+    }
+    for (int i = 0; i < hits.length; i++) {
+      hits[i] += copy.hits[i] - copy.merged[i];
+      copy.merged[i] = copy.hits[i];
+    }
+    reorder();
+  }
+
+  // the rules that hit most often first, in declaration order otherwise
+  private void reorder() {
+    for (int i = 1; i < order.length; i++) {
+      final int rule = order[i];
+      int j = i;
+      while (j > 0 && (hits[order[j - 1]] < hits[rule]
+          || (hits[order[j - 1]] == hits[rule] && order[j - 1] > rule))) {
+        order[j] = order[j - 1];
+        j--;
+      }
+      order[j] = rule;
+    }
+    ranks();
+  }
+
+  // the profile shows the position of each rule in the order
+  private void ranks() {
+    if (!report) {
+      return;
+    }
+    for (int i = 0; i < order.length; i++) {
+      final Profiler.Stats stats = processors.get(order[i]).stats;
+      if (stats != null) {
+        stats.order = i + 1;
+      }
+    }
+  }
+
+  // the rules are tried in the adapted order until one matches, the others
+  // cannot match the entry
+  @Override
+  BlockObject step(BlockObject entry) {
+    if (order == null) {
+      return super.step(entry);
+    }
+    if (entry.isUndefined()) {
+      return entry;
+    }
+    for (final PipelineStep step : processors) {
+      executed |= step.executed;
+    }
+    int i = 0;
+    for (; i < order.length; i++) {
+      final PipelineStepPattern rule = (PipelineStepPattern) processors
+          .get(order[i]);
+      if (rule.find(entry)) {
+        rule.capture(entry);
+        hits[order[i]]++;
+        break;
+      }
+    }
+    while (++i < order.length) {
+      ((PipelineStepPattern) processors.get(order[i])).exclude();
+    }
+    // early on after 1, 2, 4... entries, then periodically
+    seen++;
+    if ((seen < PERIOD) ? (seen & (seen - 1)) == 0 : seen % PERIOD == 0) {
+      reorder();
+    }
+    return entry;
+  }
+
 }
@@ -26,4 +26,10 @@ public class PipelineStageProcess extends PipelineStage {
     super(Collections.singletonList(new PipelineStepProcess(e)));
     this.effect = true;
   }
+
+  // adjacent process blocks, fused into one step
+  public PipelineStageProcess(PipelineStepFused step) {
+    super(Collections.singletonList(step));
+    this.effect = true;
+  }
 }
@@ -0,0 +1,168 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.engine;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.List;
+
+import cloudlens.block.BlockEngine;
+import cloudlens.block.BlockObject;
+
+// Runs the match stages that start a pipeline on threads of their own, one
+// per stage, connected by bounded queues, so that regex extraction overlaps
+// with the process blocks of the entries before. The rest of the pipeline
+// runs on the thread of the lens, which reads the input into the first queue
+// and takes the matched entries, in order, from the last one. Entries that
+// are not lazy (e.g. json) go through the queues untouched and are matched
+// on the thread of the lens, since they live in the JS engine. At the end,
+// the depth of the queue in front of each stage is reported: a queue that
+// stays full is in front of the slowest stage.
+public class PipelineStages extends PipelineBatch {
+  private final PipelineQueue[] queues;
+  private final PipelineStageMatch[] copies;
+  private final Thread[] threads;
+  private final PrintWriter err;
+  // the input is read, and the entry read but not yet queued
+  private boolean read = false;
+  private BlockObject next = null;
+
+  public PipelineStages(BlockEngine engine, List<PipelineStage> pipeline,
+      Iterator<BlockObject> input, int capacity, PrintWriter err,
+      PipelineStageLimit head) {
+    super(engine, pipeline, input, 1, 1, head);
+    this.err = err;
+    queues = new PipelineQueue[prefix + 1];
+    for (int i = 0; i <= prefix; i++) {
+      queues[i] = new PipelineQueue(capacity);
+    }
+    copies = new PipelineStageMatch[prefix];
+    threads = new Thread[prefix];
+    for (int i = 0; i < prefix; i++) {
+      final PipelineStageMatch stage = ((PipelineStageMatch) stages[i])
+          .copy();
+      final PipelineQueue in = queues[i];
+      final PipelineQueue out = queues[i + 1];
+      copies[i] = stage;
+      threads[i] = new Thread(() -> match(stage, in, out), "cloudlens-stage");
+      threads[i].setDaemon(true);
+      out.producer(threads[i]);
+      threads[i].start();
+    }
+  }
+
+  private static void match(PipelineStageMatch stage, PipelineQueue in,
+      PipelineQueue out) {
+    try {
+      BlockObject entry;
+      while ((entry = in.take()) != null) {
+        if (lazy(entry)) {
+          stage.step(entry);
+        }
+        out.put(entry);
+      }
+      out.close();
+    } catch (final RuntimeException e) {
+      out.fail(e);
+    } catch (final Throwable e) {
+      // e.g. out of memory: the lens must not wait for the stage forever
+      out.fail(new CLException("Pipeline stage failed: " + e, e));
+    }
+  }
+
+  private static String name(PipelineStage stage) {
+    if (stage instanceof PipelineStageMatch) {
+      return "match "
+          + ((PipelineStepPattern) stage.processors.get(0)).location();
+    } else if (stage instanceof PipelineStageProcess) {
+      final PipelineStepProcess step = (PipelineStepProcess) stage.processors
+          .get(0);
+      return "process " + step.ast.file + ":" + step.ast.line;
+    } else if (stage instanceof PipelineStageLimit) {
+      return "limit " + ((PipelineStageLimit) stage).limit;
+    } else {
+      return "after";
+    }
+  }
+
+  public String report() {
+    final StringBuilder res = new StringBuilder();
+    for (int i = 0; i <= prefix; i++) {
+      res.append((i > 0) ? "\n" : "").append("Stage ")
+          .append((i < stages.length) ? name(stages[i]) : "output")
+          .append(": queue ").append(queues[i].report());
+    }
+    return res.toString();
+  }
+
+  // queues the next entry of the input, or takes a matched entry
+  private void advance() {
+    boolean moved = false;
+    if (!read) {
+      if (next == null && !stopped() && input.hasNext()) {
+        next = input.next();
+      }
+      if (next == null) {
+        queues[0].close();
+        read = true;
+        moved = true;
+      } else if (queues[0].offer(next)) {
+        next = null;
+        moved = true;
+      }
+    }
+    final BlockObject entry = moved ? queues[prefix].poll()
+        : queues[prefix].take();
+    if (entry != null) {
+      // lazy entries went through the match stages on their threads
+      final boolean matched = lazy(entry);
+      // past a limit, the entries still in the queues are dropped
+      if (!stopped()) {
+        push(entry, matched ? prefix : 0, matched);
+      }
+    } else if (!moved) {
+      for (int i = 0; i < prefix; i++) {
+        stages[i].executed |= copies[i].executed;
+        ((PipelineStageMatch) stages[i]).merge(copies[i]);
+        for (final PipelineStep step : copies[i].processors) {
+          stages[i].executed |= step.executed;
+        }
+      }
+      err.println(report());
+      end();
+      done = true;
+    }
+  }
+
+  @Override
+  void fill() {
+    output.clear();
+    index = 0;
+    try {
+      while (output.isEmpty() && !done) {
+        advance();
+      }
+    } catch (final RuntimeException e) {
+      for (final Thread thread : threads) {
+        thread.interrupt();
+      }
+      throw e;
+    }
+  }
+}
@@ -22,6 +22,8 @@ import cloudlens.block.BlockObject;
 
 public abstract class PipelineStep {
   public boolean executed;
+  // the runs of the step, when profiling
+  Profiler.Stats stats = null;
 
   public abstract BlockObject step(BlockObject entry);
 }
@@ -0,0 +1,137 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.engine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+
+import cloudlens.block.BlockEngine;
+import cloudlens.block.BlockException;
+import cloudlens.block.BlockObject;
+import cloudlens.block.LazyEntry;
+import cloudlens.parser.ASTProcess;
+
+// Adjacent process blocks fused into a single JS function, so that an entry
+// crosses from Java to JS once for all of them. The blocks that do not run
+// on an entry are skipped in Java, without building the JS object of a lazy
+// entry, until the first block whose variables the entry defines. The JS
+// function runs the remaining blocks with their when conditions inlined, and
+// the arrays they return are expanded as between separate stages. It records
+// the index of the block it is running, for the location of an error.
+public class PipelineStepFused extends PipelineStepProcess {
+  private final PipelineStepProcess[] steps;
+  private final BlockEngine engine;
+  private final BlockObject run;
+
+  public PipelineStepFused(BlockEngine engine,
+      List<PipelineStepProcess> steps) {
+    super(steps.get(0).process);
+    this.engine = engine;
+    this.steps = steps.toArray(new PipelineStepProcess[steps.size()]);
+    // one call site per block, with its condition inlined
+    final List<String> params = new ArrayList<>();
+    final StringBuilder blocks = new StringBuilder();
+    final Object[] closures = new Object[steps.size()];
+    for (int i = 0; i < closures.length; i++) {
+      params.add("f" + i);
+      blocks.append(" if (s <= " + i + " && e !== undefined) {")
+          .append(" if ((s === " + i + " && checked) || ")
+          .append(guard(this.steps[i].ast)).append(") {")
+          .append(" at = " + i + "; e = f" + i + "(e); }")
+          .append(" if (Array.isArray(e)) { return expand(" + (i + 1)
+              + ", e, out); } }");
+      closures[i] = this.steps[i].process.closure.internalObject();
+    }
+    final String code = "(function (" + StringUtils.join(params, ",") + ") {"
+        + " var at = 0;"
+        + " var get = function (o, k) {"
+        + " return (o instanceof Object) ? o[k] : undefined; };"
+        + " var has = function (o, k) {"
+        + " return (o instanceof Object) && (k in o); };"
+        + " var run = function (s, e, checked, out) {" + blocks
+        + " if (out) { out.push(e); }"
+        + " return e; };"
+        + " var expand = function (s, a, out) {"
+        + " var res = out || [];"
+        + " for (var j = 0; j < a.length; j++) { run(s, a[j], false, res); }"
+        + " return res; };"
+        + " run.at = function () { return at; };"
+        + " return run; })";
+    this.run = engine.eval(code).call(closures);
+  }
+
+  // the when condition of a block on e, as in PipelineStepProcess.go
+  private static String guard(ASTProcess ast) {
+    final List<String> clauses = new ArrayList<>();
+    for (final Collection<String> clause : ast.clauses) {
+      final List<String> terms = new ArrayList<>();
+      for (final String variable : clause) {
+        final String[] varpath = variable.split("\\.");
+        if (varpath.length > 1) {
+          String object = "e";
+          for (int i = 1; i < varpath.length - 1; i++) {
+            object = "get(" + object + ",'" + varpath[i] + "')";
+          }
+          terms.add("has(" + object + ",'" + varpath[varpath.length - 1]
+              + "')");
+        }
+      }
+      clauses.add(clause.isEmpty() ? "false"
+          : terms.isEmpty() ? "true"
+              : "(" + StringUtils.join(terms, " && ") + ")");
+    }
+    return StringUtils.join(clauses, " || ");
+  }
+
+  @Override
+  public BlockObject step(BlockObject entry) {
+    int start = 0;
+    boolean checked = false;
+    // an array goes through all the blocks, element by element
+    if (!engine.isArray(entry)) {
+      while (start < steps.length && !steps[start].go(entry)) {
+        start++;
+      }
+      if (start == steps.length) {
+        executed = false;
+        return entry;
+      }
+      checked = true;
+    }
+    BlockObject current;
+    try {
+      current = run.call(start, entry.internalObject(), checked);
+    } catch (final BlockException e) {
+      final ASTProcess at = steps[((Number) run.get("at").call()
+          .internalObject()).intValue()].ast;
+      throw new CLException("Error: " + at.file + ", block starting line "
+          + at.line + ":\n" + e.getMessage());
+    }
+    // the blocks returned the entry: keep the wrapper the history knows
+    if (entry instanceof LazyEntry
+        && entry.internalObject().equals(current.internalObject())) {
+      current = entry;
+    }
+    executed = true;
+    return current;
+  }
+}
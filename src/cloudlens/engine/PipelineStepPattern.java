@@ -20,6 +20,7 @@ package cloudlens.engine;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Set;
@@ -27,24 +28,32 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
+import cloudlens.block.BlockException;
 import cloudlens.block.BlockObject;
+import cloudlens.block.FieldPath;
 
 // a wrapper around the Pattern class to keep track of property names and types
 public class PipelineStepPattern extends PipelineStep {
   private final String file;
   private final int line;
   private final String upon;
+  private final String regex;
+  private final FieldPath path;
   // a pattern to find properties in a regex
   private static Pattern property = Pattern.compile(
       "\\(\\?<([a-zA-Z][a-zA-Z0-9]*)(?:\\s*:\\s*([a-zA-Z][a-zA-Z0-9]*(?:\\[[^\\]]+\\])?))?>");
 
   private Set<Map.Entry<String, String>> env = null; // property:type
   private Matcher matcher;
+  // the time to find the last match, when profiling
+  private long found = 0;
 
   public PipelineStepPattern(String file, int line, String regex, String upon) {
     this.file = file;
     this.line = line;
     this.upon = upon;
+    this.regex = regex;
+    this.path = new FieldPath(upon);
 
     try {
       final Map<String, String> map = new Hashtable<>();
@@ -62,23 +71,142 @@ public class PipelineStepPattern extends PipelineStep {
     }
   }
 
+  // the same rule, with a matcher of its own
+  public PipelineStepPattern copy() {
+    final PipelineStepPattern res = new PipelineStepPattern(file, line, regex,
+        upon);
+    res.stats = stats;
+    return res;
+  }
+
+  // the file and line of the rule
+  public String location() {
+    return file + ":" + line;
+  }
+
+  // the field matched and the regex, as written
+  public String rule() {
+    return upon + " " + regex;
+  }
+
+  // the fields captured by the rule
+  Set<String> captures() {
+    final Set<String> res = new HashSet<>();
+    for (final Map.Entry<String, String> p : env) {
+      res.add(p.getKey());
+    }
+    return res;
+  }
+
+  // the first field of the path matched, which the rule must not capture
+  // to be tried in any order
+  String field() {
+    return path.field();
+  }
+
+  // the path matched
+  String upon() {
+    return upon;
+  }
+
+  // the text that a match must start with, if the regex is anchored with ^
+  // and has no alternative at the top level, or null
+  String prefix() {
+    if (!regex.startsWith("^")) {
+      return null;
+    }
+    int depth = 0;
+    boolean inClass = false;
+    for (int i = 1; i < regex.length(); i++) {
+      final char c = regex.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (inClass) {
+        inClass = c != ']';
+      } else if (c == '[') {
+        inClass = true;
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+      } else if (c == '|' && depth == 0) {
+        return null;
+      }
+    }
+    final StringBuilder res = new StringBuilder();
+    for (int i = 1; i < regex.length(); i++) {
+      char c = regex.charAt(i);
+      if (c == '\\' && i + 1 < regex.length()
+          && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+        c = regex.charAt(++i);
+      } else if ("\\[](){}.*+?^$|".indexOf(c) >= 0) {
+        break;
+      }
+      // the last character may be optional or repeated
+      if (i + 1 < regex.length()
+          && "?*{+".indexOf(regex.charAt(i + 1)) >= 0) {
+        break;
+      }
+      res.append(c);
+    }
+    return res.toString();
+  }
+
+  // the rule was not tried, since it cannot match
+  void exclude() {
+    if (stats != null) {
+      stats.miss(0);
+    }
+    executed = false;
+  }
+
   // match the input against the pattern and define properties found in pattern
   @Override
   public BlockObject step(BlockObject properties) {
-    final String[] varpath = this.upon.split("\\.");
-    if (!properties.checkpath(varpath, 1)) {
+    if (find(properties)) {
+      capture(properties);
+    }
+    return properties;
+  }
+
+  // the input matches the pattern: the match is kept for capture()
+  boolean find(BlockObject properties) {
+    if (!path.test(properties)) {
+      if (stats != null) {
+        stats.skip();
+      }
       executed = false;
-      return properties;
+      return false;
+    }
+    final long start = (stats != null) ? System.nanoTime() : 0;
+    final Object field = path.read(properties);
+    if (!(field instanceof String)) {
+      throw new BlockException("JSObject cannot be cast into a String");
     }
-    final String text = properties.getpath(varpath, 1).asString();
     try {
-      final Matcher m = matcher.reset(text);
-      if (!m.find()) {
+      if (!matcher.reset((String) field).find()) {
+        if (stats != null) {
+          stats.miss(System.nanoTime() - start);
+        }
         executed = false;
-        return properties;
+        return false;
       }
+    } catch (final IllegalArgumentException e) {
+      throw new CLException("Regular Expression Syntax Error: " + file
+          + " line " + line + "\n" + e.getMessage());
+    }
+    if (stats != null) {
+      found = System.nanoTime() - start;
+    }
+    return true;
+  }
+
+  // define the properties of the last match found
+  void capture(BlockObject properties) {
+    final long start = (stats != null) ? System.nanoTime() : 0;
+    try {
       for (final Map.Entry<String, String> p : env) {
-        final String value = m.group(p.getKey());
+        final String value = matcher.group(p.getKey());
         if (value != null) {
           // match includes this property
           Object v = value;
@@ -105,11 +233,13 @@ public class PipelineStepPattern extends PipelineStep {
           properties.put(p.getKey(), v);
         }
       }
-      executed = true;
-      return properties;
     } catch (final IllegalArgumentException e) {
       throw new CLException("Regular Expression Syntax Error: " + file
           + " line " + line + "\n" + e.getMessage());
     }
+    if (stats != null) {
+      stats.hit(found + System.nanoTime() - start);
+    }
+    executed = true;
   }
 }
@@ -18,47 +18,87 @@
 
 package cloudlens.engine;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import cloudlens.block.BlockException;
 import cloudlens.block.BlockObject;
+import cloudlens.block.FieldPath;
+import cloudlens.block.LazyEntry;
 import cloudlens.parser.ASTProcess;
 
 // a wrapper around the Script class to keep track of variable dependencies
 public class PipelineStepProcess extends PipelineStep {
   public CLElement process;
   public ASTProcess ast;
+  // the variables of each clause, without the entry name alone
+  private final List<FieldPath[]> clauses = new ArrayList<>();
 
   public PipelineStepProcess(CLElement e) {
     this.process = e;
     this.ast = e.process();
-  }
-
-  @Override
-  public BlockObject step(BlockObject entry) {
-    // do not execute if no update to the variables occurring in this script
-    boolean go = false;
-    BlockObject current = entry;
     for (final Collection<String> clause : ast.clauses) {
-      boolean goClause = !clause.isEmpty();
+      final List<FieldPath> paths = new ArrayList<>();
       for (final String variable : clause) {
-        final String[] varpath = variable.split("\\.");
+        final FieldPath path = new FieldPath(variable);
         // if varpath only contains entry name, always execute
-        if (!(varpath.length <= 1)) {
-          goClause &= entry.checkpath(varpath, 1);
+        if (!path.isEntry()) {
+          paths.add(path);
         }
       }
-      if (go |= goClause) {
-        break;
+      // an empty clause never holds
+      if (!clause.isEmpty()) {
+        clauses.add(paths.toArray(new FieldPath[paths.size()]));
       }
     }
-    if (!go) {
+  }
+
+  // the file and line of the block
+  public String location() {
+    return ast.file + ":" + ast.line;
+  }
+
+  // the entry defines the variables occurring in this script
+  boolean go(BlockObject entry) {
+    for (final FieldPath[] clause : clauses) {
+      boolean goClause = true;
+      for (final FieldPath path : clause) {
+        if (!path.test(entry)) {
+          goClause = false;
+          break;
+        }
+      }
+      if (goClause) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public BlockObject step(BlockObject entry) {
+    // do not execute if no update to the variables occurring in this script
+    BlockObject current = entry;
+    if (!go(entry)) {
+      if (stats != null) {
+        stats.skip();
+      }
       executed = false;
       return current;
     }
 
     try {
+      final long start = (stats != null) ? System.nanoTime() : 0;
       current = process.closure.call(entry);
+      if (stats != null) {
+        stats.record(System.nanoTime() - start);
+      }
+      // the block returned the entry: keep the wrapper the history knows
+      if (entry instanceof LazyEntry
+          && entry.internalObject().equals(current.internalObject())) {
+        current = entry;
+      }
     } catch (final BlockException e) {
       throw new CLException("Error: " + ast.file + ", block starting line "
           + ast.line + ":\n" + e.getMessage());
@@ -0,0 +1,199 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.engine;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cloudlens.block.BlockEngine;
+import cloudlens.block.BlockObject;
+
+// Counts and times the steps of the lenses, keyed by kind and location
+// (file:line): the match rules, process blocks, blocks and sources. The
+// times of a step are kept in a histogram of logarithmic buckets, 8 per
+// power of two, to report percentiles within 12.5%.
+public class Profiler {
+  private static final int BUCKETS = 512;
+
+  public static class Stats {
+    public final String step;
+    public final String location;
+    public long calls = 0;
+    // not run: the when clauses or the matched field do not hold
+    public long skipped = 0;
+    public long hits = 0;
+    public long misses = 0;
+    public long nanos = 0;
+    // the position of a match rule in the order its block tries them, when
+    // adapted to their hit rates (0 otherwise)
+    public int order = 0;
+    private final long[] buckets = new long[BUCKETS];
+
+    Stats(String step, String location) {
+      this.step = step;
+      this.location = location;
+    }
+
+    public synchronized void skip() {
+      skipped++;
+    }
+
+    public synchronized void record(long time) {
+      calls++;
+      nanos += time;
+      buckets[bucket(time)]++;
+    }
+
+    public synchronized void hit(long time) {
+      hits++;
+      record(time);
+    }
+
+    public synchronized void miss(long time) {
+      misses++;
+      record(time);
+    }
+
+    // the time of the call at fraction q of the calls, in ns
+    public synchronized long percentile(double q) {
+      final long rank = Math.max(1, (long) Math.ceil(q * calls));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += buckets[i];
+        if (seen >= rank) {
+          return upper(i);
+        }
+      }
+      return 0;
+    }
+  }
+
+  static int bucket(long time) {
+    if (time < 8) {
+      return (int) Math.max(time, 0);
+    }
+    final int e = 63 - Long.numberOfLeadingZeros(time);
+    return (e - 2) * 8 + (int) ((time >> (e - 3)) & 7);
+  }
+
+  // the largest time in the bucket
+  static long upper(int bucket) {
+    if (bucket < 8) {
+      return bucket;
+    }
+    final int e = bucket / 8 + 2;
+    return ((8L + bucket % 8) << (e - 3)) + (1L << (e - 3)) - 1;
+  }
+
+  private final Map<String, Stats> steps = new LinkedHashMap<>();
+
+  // the stats of a step, shared by all its runs
+  public synchronized Stats stats(String step, String location) {
+    final String key = step + " " + location;
+    Stats res = steps.get(key);
+    if (res == null) {
+      res = new Stats(step, location);
+      steps.put(key, res);
+    }
+    return res;
+  }
+
+  public synchronized List<Stats> steps() {
+    return new ArrayList<>(steps.values());
+  }
+
+  // the elements of it, each call to next() (and the hasNext() before it)
+  // recorded as a call
+  public static <T> Iterator<T> timed(Iterator<T> it, Stats stats) {
+    return new Iterator<T>() {
+      private long pending = 0;
+
+      @Override
+      public boolean hasNext() {
+        final long start = System.nanoTime();
+        final boolean res = it.hasNext();
+        pending += System.nanoTime() - start;
+        return res;
+      }
+
+      @Override
+      public T next() {
+        final long start = System.nanoTime();
+        final T res = it.next();
+        stats.record(pending + System.nanoTime() - start);
+        pending = 0;
+        return res;
+      }
+    };
+  }
+
+  // one object per step, for CL.profile()
+  public BlockObject toArray(BlockEngine engine) {
+    final BlockObject res = engine.newArray();
+    for (final Stats s : steps()) {
+      final BlockObject row = engine.newObject();
+      synchronized (s) {
+        row.put("step", s.step);
+        row.put("location", s.location);
+        row.put("calls", (double) s.calls);
+        row.put("skipped", (double) s.skipped);
+        row.put("hits", (double) s.hits);
+        row.put("misses", (double) s.misses);
+        row.put("totalMs", s.nanos / 1e6);
+        row.put("p50Us", s.percentile(0.5) / 1e3);
+        row.put("p90Us", s.percentile(0.9) / 1e3);
+        row.put("p99Us", s.percentile(0.99) / 1e3);
+        row.put("order", s.order);
+      }
+      res.push(row);
+    }
+    return res;
+  }
+
+  public String report() {
+    final List<Stats> stats = steps();
+    int width = "location".length();
+    for (final Stats s : stats) {
+      width = Math.max(width, s.location.length());
+    }
+    final String format = "%-8s %-" + width
+        + "s %10s %10s %10s %10s %10s %9s %9s %9s %6s";
+    final StringBuilder sb = new StringBuilder("Profile:\n");
+    sb.append(String.format(format, "step", "location", "calls", "skipped",
+        "hits", "misses", "total ms", "p50 us", "p90 us", "p99 us",
+        "order"));
+    for (final Stats s : stats) {
+      synchronized (s) {
+        sb.append('\n').append(String.format(format, s.step, s.location,
+            s.calls, s.skipped, s.hits, s.misses,
+            String.format("%.1f", s.nanos / 1e6),
+            micros(s.percentile(0.5)), micros(s.percentile(0.9)),
+            micros(s.percentile(0.99)), (s.order > 0) ? s.order : "-"));
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String micros(long nanos) {
+    return String.format("%.1f", nanos / 1e3);
+  }
+}
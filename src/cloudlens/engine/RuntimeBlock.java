@@ -35,17 +35,25 @@ public class RuntimeBlock implements RuntimeElement {
 
   @Override
   public CLIterator run(CL cl, CLIterator clIt, boolean withHistory) {
+    final long start = System.nanoTime();
     try {
 
       final BlockObject closures = block.closure.call();
       final List<RuntimeElement> runtimes = CLBuilder.build(cl, block,
           closures);
 
+      // CL.log() in the blocks that follow sees the history of the pipelines
+      // before them
       for (final RuntimeElement e : runtimes) {
         clIt = e.run(cl, clIt, withHistory);
+        cl.heapIt.set(0, clIt);
       }
 
       cl.executed = true;
+      if (cl.profiler != null) {
+        cl.profiler.stats("block", ast.file + ":" + ast.line)
+            .record(System.nanoTime() - start);
+      }
       return clIt;
 
     } catch (final BlockException e) {
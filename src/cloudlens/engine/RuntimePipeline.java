@@ -30,14 +30,71 @@ public class RuntimePipeline implements RuntimeElement {
     this.pipeline = pipeline;
   }
 
-  @Override
-  public CLIterator run(CL cl, CLIterator clIt, boolean withHistory) {
+  // a limit stops the pipeline before the end of its input
+  public boolean limited() {
     for (final PipelineStage child : pipeline) {
-      clIt = child.apply(cl.engine, clIt);
+      if (child instanceof PipelineStageLimit) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // the entries of clIt after the stages, pulled through a chain of
+  // iterators, pushed through the stages in batches, or matched on threads
+  // of their own. The input ends early when head (if any) is stopped.
+  static CLIterator apply(CL cl, List<PipelineStage> pipeline,
+      CLIterator clIt, boolean withHistory, PipelineStageLimit head) {
+    // entries that arrive as they are written, or whose window CL.log()
+    // shows, are not read ahead
+    final boolean ahead = !clIt.live
+        && !(withHistory && cl.retention != null);
+    if (cl.stages > 0 && ahead && !pipeline.isEmpty()
+        && pipeline.get(0) instanceof PipelineStageMatch) {
+      return new CLIterator(cl.engine, new PipelineStages(cl.engine,
+          pipeline, clIt, cl.stages, cl.errWriter, head), false);
+    }
+    if (cl.batch == 0 && cl.parallel <= 1) {
+      if (head != null) {
+        clIt = head.apply(cl.engine, clIt);
+      }
+      for (final PipelineStage child : pipeline) {
+        clIt = child.apply(cl.engine, clIt);
+      }
+      return clIt;
     }
+    final int size = !ahead ? 1
+        : (cl.batch > 0) ? cl.batch : PipelineBatch.SIZE;
+    return new CLIterator(cl.engine,
+        new PipelineBatch(cl.engine, pipeline, clIt, size, cl.parallel,
+            head),
+        false);
+  }
+
+  @Override
+  public CLIterator run(CL cl, CLIterator clIt, boolean withHistory) {
+    final CLIterator source = clIt;
+    final HistoryStore input = clIt.history;
+    final PipelineStageLimit head = new PipelineStageLimit();
+    clIt = apply(cl, pipeline, clIt, withHistory, head);
     clIt.withHistory = withHistory;
+    clIt.budget = cl.budget;
+    clIt.compact = cl.compact;
+    clIt.retains = cl.retains;
+    clIt.base = input;
+    clIt.retention = cl.retention;
+    if (withHistory && (cl.retention != null || !source.withHistory)) {
+      // the stream is not stored ahead: CL.log() sees the window so far
+      source.history = clIt.recording();
+    }
 
-    clIt.iterate();
+    // CL.stop() ends the input of the innermost pipeline
+    cl.running.push(head);
+    try {
+      clIt.iterate();
+    } finally {
+      cl.running.pop();
+    }
 
     for (final PipelineStage child : pipeline) {
       cl.executed |= child.executed;
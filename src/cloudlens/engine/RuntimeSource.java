@@ -18,11 +18,17 @@
 
 package cloudlens.engine;
 
+import java.util.Iterator;
+
 import cloudlens.parser.ASTSource;
+import cloudlens.parser.FileReader;
 
 public class RuntimeSource implements RuntimeElement {
   public final CLElement source;
   public final ASTSource ast;
+  // the pipeline that reads the source stops at a limit: the source is not
+  // stored ahead
+  public boolean lazy = false;
 
   public RuntimeSource(CLElement e) {
     this.source = e;
@@ -32,12 +38,28 @@ public class RuntimeSource implements RuntimeElement {
   @Override
   public CLIterator run(CL cl, CLIterator clIt, boolean withHistory) {
     try {
+      if (ast.follow) {
+        return follow(cl, withHistory);
+      }
+      final boolean ahead = cl.ahead(withHistory) && !lazy;
       switch (ast.format) {
       case Json:
-        clIt = CLIterator.json(cl.engine, ast.url, ast.path, withHistory);
+        final long start = System.nanoTime();
+        clIt = CLIterator.json(cl.engine, ast.url, ast.path, ahead,
+            cl.budget, cl.compact);
+        if (cl.profiler != null) {
+          stats(cl).record(System.nanoTime() - start);
+        }
+        break;
+      case Jsonl:
+        clIt = CLIterator.jsonl(cl.engine,
+            lines(cl, FileReader.fetchLines(ast.url)), ahead, cl.budget,
+            cl.compact);
         break;
       case Text:
-        clIt = CLIterator.source(cl.engine, ast.url, withHistory);
+        clIt = CLIterator.source(cl.engine,
+            lines(cl, FileReader.fetchLines(ast.url)), ahead, cl.budget,
+            cl.compact);
         break;
       }
       return clIt;
@@ -46,4 +68,37 @@ public class RuntimeSource implements RuntimeElement {
           + ast.line + ":\n" + e.getMessage());
     }
   }
+
+  private Profiler.Stats stats(CL cl) {
+    return cl.profiler.stats("source", ast.file + ":" + ast.line);
+  }
+
+  // the lines of the source, each read timed when profiling
+  private Iterator<String> lines(CL cl, Iterator<String> lines) {
+    return (cl.profiler != null) ? Profiler.timed(lines, stats(cl)) : lines;
+  }
+
+  // a followed file never ends: it cannot be stored in history, except for
+  // a window of it
+  private CLIterator follow(CL cl, boolean withHistory) {
+    if (cl.ahead(withHistory)) {
+      throw new CLException(
+          "follow mode requires streaming mode without history.");
+    }
+    final CLIterator res;
+    switch (ast.format) {
+    case Jsonl:
+      res = CLIterator.jsonl(cl.engine,
+          lines(cl, FileReader.followLines(ast.url)), false, 0, false);
+      break;
+    case Text:
+      res = CLIterator.source(cl.engine,
+          lines(cl, FileReader.followLines(ast.url)), false, 0, false);
+      break;
+    default:
+      throw new CLException("follow mode is not supported for json.");
+    }
+    res.live = true;
+    return res;
+  }
 }
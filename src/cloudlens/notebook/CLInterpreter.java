@@ -94,7 +94,7 @@ public class CLInterpreter extends Interpreter {
     final List<ASTElement> top = ASTBuilder.parse(st);
     return js.interpret(() -> {
       cl.launch(top);
-      return cl.engine.newObject(cl.log());
+      return cl.engine.newObject(cl.head(js.maxResult + 1));
     }, cl);
   }
 
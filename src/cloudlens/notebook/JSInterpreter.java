@@ -44,6 +44,8 @@ import com.google.gson.GsonBuilder;
 
 import cloudlens.block.BlockObject;
 import cloudlens.engine.CL;
+import cloudlens.engine.HistoryStore;
+import cloudlens.engine.Profiler;
 
 /**
  * JavaScript interpreter for Zeppelin.
@@ -51,11 +53,21 @@ import cloudlens.engine.CL;
 public class JSInterpreter extends Interpreter {
   static {
     Interpreter.register("js", "cloudlens", JSInterpreter.class.getName(),
-        new InterpreterPropertyBuilder().add("zeppelin.cloudlens.maxResult",
-            "10", "Max number of results to display.").build());
+        new InterpreterPropertyBuilder()
+            .add("zeppelin.cloudlens.maxResult", "10",
+                "Max number of results to display.")
+            .add("zeppelin.cloudlens.historyBudget", "0",
+                "Memory for the log history before it is written to disk, "
+                    + "e.g. 512m (0 for no limit).")
+            .add("zeppelin.cloudlens.profile", "false",
+                "Count and time the steps of the lenses, shown as a table "
+                    + "by CL.profile().")
+            .build());
   }
 
   int maxResult;
+  long historyBudget;
+  boolean profile;
   Map<String, CL> map;
 
   /**
@@ -71,6 +83,9 @@ public class JSInterpreter extends Interpreter {
   @Override
   public void open() {
     maxResult = Integer.parseInt(getProperty("zeppelin.cloudlens.maxResult"));
+    historyBudget = HistoryStore
+        .parseBudget(getProperty("zeppelin.cloudlens.historyBudget"));
+    profile = Boolean.parseBoolean(getProperty("zeppelin.cloudlens.profile"));
     map = new HashMap<>();
   }
 
@@ -83,7 +98,15 @@ public class JSInterpreter extends Interpreter {
     if (!map.containsKey(id)) {
       final ByteArrayOutputStream out = new ByteArrayOutputStream();
       final ByteArrayOutputStream err = new ByteArrayOutputStream();
-      map.put(id, new CL(out, err, false, true));
+      final CL cl = new CL(out, err, false, true);
+      cl.budget = historyBudget;
+      cl.compact = historyBudget > 0;
+      // the paragraphs are JS code that is not analyzed
+      cl.retains = true;
+      if (profile) {
+        cl.profiler = new Profiler();
+      }
+      map.put(id, cl);
     }
     return map.get(id);
   }
@@ -20,7 +20,7 @@ package cloudlens.parser;
 
 public abstract class ASTElement {
   public enum ASTType {
-    Declaration, Block, Process, After, Match, Run, Lens, Source
+    Declaration, Block, Process, After, Match, Run, Lens, Source, Limit
   }
 
   public String file;
@@ -0,0 +1,40 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.parser;
+
+import cloudlens.block.BlockException;
+import cloudlens.block.JSEngine;
+import cloudlens.engine.CLException;
+
+public class ASTLimit extends ASTElement {
+  // the number of entries, as a JS array of the arguments
+  public String args;
+
+  public ASTLimit(String file, int line, String args) {
+    super(file, line, ASTType.Limit);
+
+    try {
+      JSEngine.checkSyntax(file, line, args);
+    } catch (final BlockException e) {
+      throw new CLException(e.getMessage());
+    }
+
+    this.args = args;
+  }
+}
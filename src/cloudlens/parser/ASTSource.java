@@ -22,22 +22,38 @@ import cloudlens.engine.CLException;
 
 public class ASTSource extends ASTElement {
   public enum Format {
-    Text, Json
+    Text, Json, Jsonl
   }
 
   public String url;
   public Format format;
   public String path;
+  public boolean follow;
 
   public ASTSource(String file, int line, String url, String format,
       String path) {
     super(file, line, ASTType.Source);
     this.url = url;
+    // the last argument may be follow, e.g. source(url, follow) or
+    // source(url, jsonl, follow)
+    if (path == null && "follow".equals(format)) {
+      this.follow = true;
+      format = null;
+    } else if ("follow".equals(path)) {
+      if ("json".equals(format)) {
+        throw new CLException("Error: " + file + ", block starting line "
+            + line + ":\nfollow mode is not supported for json.");
+      }
+      this.follow = true;
+      path = null;
+    }
     this.path = path;
     if (format == null) {
       this.format = Format.Text;
     } else if (format.equals("json")) {
       this.format = Format.Json;
+    } else if (format.equals("jsonl")) {
+      this.format = Format.Jsonl;
     } else {
       throw new CLException("Unsupported format: " + format);
     }
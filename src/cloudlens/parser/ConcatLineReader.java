@@ -0,0 +1,82 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.parser;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+// Concatenates the lines of several inputs. Each input returns all its lines,
+// including trailing whitespace lines; whitespace lines at the end of the
+// concatenation are dropped, as by Scanner. Up to ahead inputs are opened
+// before they are read, e.g. to start decompressing them.
+public class ConcatLineReader implements Iterator<String> {
+  private final List<Supplier<Iterator<String>>> inputs;
+  private final int ahead;
+  private final ArrayDeque<Iterator<String>> opened = new ArrayDeque<>();
+  private int next = 0;
+  // whitespace lines, returned only if a line follows that is not
+  private final ArrayDeque<String> blank = new ArrayDeque<>();
+  private String line = null;
+
+  public ConcatLineReader(List<Supplier<Iterator<String>>> inputs,
+      int ahead) {
+    this.inputs = inputs;
+    this.ahead = Math.max(1, ahead);
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (line == null) {
+      while (opened.size() < ahead && next < inputs.size()) {
+        opened.add(inputs.get(next++).get());
+      }
+      if (opened.isEmpty()) {
+        blank.clear();
+        return false;
+      }
+      if (!opened.peek().hasNext()) {
+        opened.poll();
+      } else {
+        final String l = opened.peek().next();
+        if (MappedLineReader.isBlank(l)) {
+          blank.add(l);
+        } else {
+          line = l;
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    if (!blank.isEmpty()) {
+      return blank.poll();
+    }
+    final String res = line;
+    line = null;
+    return res;
+  }
+}
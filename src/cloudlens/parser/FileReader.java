@@ -18,6 +18,7 @@
 
 package cloudlens.parser;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -26,56 +27,194 @@ import java.io.SequenceInputStream;
 import java.net.HttpURLConnection;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Scanner;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.apache.commons.io.FilenameUtils;
 
 import cloudlens.engine.CLException;
 
 public class FileReader {
 
-  public static InputStream fetchFile(String urlString) {
+  public static Path localPath(String urlString) {
     try {
-      InputStream inputStream;
-      URL url;
       if (urlString.startsWith("local:")) {
-        final String path = urlString.replaceFirst("local:", "");
-        inputStream = Files.newInputStream(Paths.get(path));
+        return Paths.get(urlString.replaceFirst("local:", ""));
       } else if (urlString.startsWith("file:")) {
-        url = new URL(urlString);
-        inputStream = Files.newInputStream(Paths.get(url.toURI()));
+        return Paths.get(new URL(urlString).toURI());
+      }
+      return null;
+    } catch (IOException | URISyntaxException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  public static InputStream fetchFile(String urlString) {
+    try {
+      InputStream inputStream;
+      final Path path = localPath(urlString);
+      if (path != null) {
+        inputStream = decompress(Files.newInputStream(path));
       } else if (urlString.startsWith("http:")
           || urlString.startsWith("https:")) {
-        url = new URL(urlString);
-        final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setDoInput(true);
-        final Matcher matcher = Pattern.compile("//([^@]+)@")
-            .matcher(urlString);
-        if (matcher.find()) {
-          final String encoding = Base64.getEncoder()
-              .encodeToString(matcher.group(1).getBytes());
-          conn.setRequestProperty("Authorization", "Basic " + encoding);
-        }
-        conn.setRequestMethod("GET");
-        inputStream = conn.getInputStream();
+        inputStream = decompress(HttpRangeInputStream.open(urlString));
       } else {
         throw new CLException(
             "supported protocols are: http, https, file, and local.");
       }
       return inputStream;
-    } catch (IOException | URISyntaxException e) {
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  // a connection with basic authentication if the url has user info
+  static HttpURLConnection connect(String urlString, String method)
+      throws IOException {
+    final URL url = new URL(urlString);
+    final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setDoInput(true);
+    final Matcher matcher = Pattern.compile("//([^@]+)@").matcher(urlString);
+    if (matcher.find()) {
+      final String encoding = Base64.getEncoder()
+          .encodeToString(matcher.group(1).getBytes());
+      conn.setRequestProperty("Authorization", "Basic " + encoding);
+    }
+    conn.setRequestMethod(method);
+    return conn;
+  }
+
+  public static Iterator<String> fetchLines(String urlString) {
+    final Path path = localPath(urlString);
+    if (path != null && !compressed(path)) {
+      return MappedLineReader.open(path.toString());
+    }
+    return lines(fetchFile(urlString));
+  }
+
+  public static Iterator<String> followLines(String urlString) {
+    final Path path = localPath(urlString);
+    if (path == null) {
+      throw new CLException("follow mode requires a local file.");
+    }
+    return new FollowLineReader(path);
+  }
+
+  // gzip (including multi-member files) or bzip2, by magic bytes
+  private static boolean compressed(int b0, int b1, int b2) {
+    return (b0 == 0x1f && b1 == 0x8b) || (b0 == 'B' && b1 == 'Z' && b2 == 'h');
+  }
+
+  public static boolean compressed(Path path) {
+    try (InputStream in = Files.newInputStream(path)) {
+      return compressed(in.read(), in.read(), in.read());
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  private static boolean compressed(FileChannel channel) {
+    try {
+      final ByteBuffer magic = ByteBuffer.allocate(3);
+      channel.read(magic, 0);
+      return magic.position() >= 2 && compressed(magic.get(0) & 0xFF,
+          magic.get(1) & 0xFF, magic.get(2) & 0xFF);
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  private static boolean gzip(FileChannel channel) {
+    try {
+      final ByteBuffer magic = ByteBuffer.allocate(2);
+      channel.read(magic, 0);
+      return magic.position() == 2 && (magic.get(0) & 0xFF) == 0x1f
+          && (magic.get(1) & 0xFF) == 0x8b;
+    } catch (final IOException e) {
       throw new CLException(e.getMessage());
     }
   }
 
+  private static InputStream parallelGzip(FileChannel channel, int threads) {
+    try {
+      return new ParallelGzipInputStream(channel, threads);
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  // decompresses gzip and bzip2 streams on the fly, other streams are
+  // returned unchanged
+  public static InputStream decompress(InputStream inputStream) {
+    try {
+      final InputStream in = new BufferedInputStream(inputStream, 1 << 16);
+      in.mark(3);
+      final boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+      in.reset();
+      final boolean bzip2 = in.read() == 'B' && in.read() == 'Z'
+          && in.read() == 'h';
+      in.reset();
+      if (gzip) {
+        return new GZIPInputStream(in, 1 << 16);
+      } else if (bzip2) {
+        return new BZip2CompressorInputStream(in, true);
+      }
+      return in;
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  public static Iterator<String> lines(InputStream inputStream) {
+    return lines(inputStream, false);
+  }
+
+  // with keepTail, whitespace lines at the end of the input are returned
+  public static Iterator<String> lines(InputStream inputStream,
+      boolean keepTail) {
+    return new Iterator<String>() {
+      final Scanner scan = new Scanner(inputStream);
+
+      @Override
+      protected void finalize() throws IOException {
+        if (scan != null) {
+          scan.close();
+        }
+      }
+
+      @Override
+      public boolean hasNext() {
+        final boolean res = keepTail ? scan.hasNextLine() : scan.hasNext();
+        // e.g. a corrupt or truncated archive
+        if (!res && scan.ioException() != null) {
+          throw new CLException(scan.ioException().getMessage());
+        }
+        return res;
+      }
+
+      @Override
+      public String next() {
+        return scan.nextLine();
+      }
+    };
+  }
+
   public static ArrayList<String> fullPaths(String[] filePaths) {
     final ArrayList<String> res = new ArrayList<>();
     if (filePaths != null) {
@@ -100,7 +239,7 @@ public class FileReader {
     try {
       final List<InputStream> streams = new ArrayList<>();
       for (final String name : fileNames) {
-        streams.add(new FileInputStream(new File(name)));
+        streams.add(decompress(new FileInputStream(new File(name))));
       }
       final Enumeration<InputStream> files = Collections.enumeration(streams);
       return new SequenceInputStream(files);
@@ -108,4 +247,66 @@ public class FileReader {
       throw new CLException(e.getMessage());
     }
   }
+
+  public static Iterator<String> readLines(String[] fileNames) {
+    return readLines(fileNames, 1);
+  }
+
+  public static Iterator<String> readLines(String[] fileNames, int threads) {
+    final List<FileChannel> channels = MappedLineReader.channels(fileNames);
+    if (channels.stream().anyMatch(FileReader::compressed)) {
+      return readCompressed(channels, threads);
+    }
+    if (threads > 1) {
+      return new ParallelLineReader(channels, threads);
+    }
+    return new MappedLineReader(MappedLineReader.ranges(channels), false,
+        true);
+  }
+
+  // compressed files are decompressed on the fly, by background threads
+  // when threads > 1, with up to threads files decompressed at a time, and
+  // the members of a gzip file inflated by up to threads threads
+  private static Iterator<String> readCompressed(List<FileChannel> channels,
+      int threads) {
+    final List<Supplier<Iterator<String>>> inputs = new ArrayList<>();
+    for (final FileChannel channel : channels) {
+      if (compressed(channel)) {
+        inputs.add(() -> {
+          if (threads == 1) {
+            return lines(decompress(Channels.newInputStream(channel)), true);
+          }
+          final InputStream in = gzip(channel)
+              ? parallelGzip(channel, threads)
+              : decompress(Channels.newInputStream(channel));
+          return lines(new ReadAheadInputStream(in), true);
+        });
+      } else {
+        inputs.add(() -> new MappedLineReader(
+            MappedLineReader.ranges(Collections.singletonList(channel)), true,
+            true));
+      }
+    }
+    return new ConcatLineReader(inputs, threads);
+  }
+
+  // the selected region of each file, using sidecar indexes to seek to it
+  // (compressed files are read from the start)
+  public static Iterator<String> readLines(String[] fileNames,
+      LogSelection selection) {
+    final List<FileChannel> channels = MappedLineReader.channels(fileNames);
+    final List<Supplier<Iterator<String>>> inputs = new ArrayList<>();
+    for (int i = 0; i < fileNames.length; i++) {
+      final String name = fileNames[i];
+      final FileChannel channel = channels.get(i);
+      if (compressed(channel)) {
+        inputs.add(() -> selection.select(
+            lines(decompress(Channels.newInputStream(channel)), true), 0));
+      } else {
+        inputs.add(
+            () -> LogIndex.open(name, channel, selection).select(selection));
+      }
+    }
+    return new ConcatLineReader(inputs, 1);
+  }
 }
@@ -0,0 +1,201 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.parser;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import cloudlens.engine.CLException;
+
+// Reads a growing log file, like tail -F, and never ends. The file is read
+// from the start, in batches of up to BATCH bytes, and then waits for
+// changes reported by a WatchService (or at most POLL ms, since some
+// platforms poll). A file that shrinks was truncated and is read again from
+// the start. When the path is renamed away and recreated (log rotation), the
+// rest of the old file is read before the new one.
+public class FollowLineReader implements Iterator<String> {
+  private static final int BATCH = 1 << 20;
+  private static final long POLL = 250;
+
+  private final Path path;
+  private final WatchService watcher;
+  private FileChannel channel = null;
+  private Object fileKey = null;
+  private long position = 0;
+  private final ByteBuffer buffer = ByteBuffer.allocate(BATCH);
+  // incomplete last line
+  private byte[] partial = new byte[256];
+  private int partialLength = 0;
+  private final ArrayDeque<String> lines = new ArrayDeque<>();
+
+  public FollowLineReader(Path path) {
+    this.path = path.toAbsolutePath();
+    try {
+      watcher = FileSystems.getDefault().newWatchService();
+      this.path.getParent().register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+    open();
+  }
+
+  private void open() {
+    try {
+      channel = FileChannel.open(path, StandardOpenOption.READ);
+      fileKey = Files.readAttributes(path, BasicFileAttributes.class)
+          .fileKey();
+    } catch (final NoSuchFileException e) {
+      // not created yet, or being rotated
+      channel = null;
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+    position = 0;
+    partialLength = 0;
+  }
+
+  // path refers to another file than the one being read
+  private boolean rotated() throws IOException {
+    try {
+      final Object key = Files.readAttributes(path, BasicFileAttributes.class)
+          .fileKey();
+      return key != null && !key.equals(fileKey);
+    } catch (final NoSuchFileException e) {
+      return false;
+    }
+  }
+
+  // reads available bytes, returns false if there were none
+  private boolean read() throws IOException {
+    if (channel == null) {
+      open();
+      if (channel == null) {
+        return false;
+      }
+    }
+    if (channel.size() < position) {
+      // truncated
+      position = 0;
+      partialLength = 0;
+    }
+    buffer.clear();
+    final int n = channel.read(buffer, position);
+    if (n > 0) {
+      position += n;
+      split(n);
+      return true;
+    }
+    if (rotated()) {
+      if (partialLength > 0) {
+        lines.add(decode(partial, 0, partialLength));
+      }
+      channel.close();
+      open();
+      return true;
+    }
+    return false;
+  }
+
+  private void split(int n) {
+    final byte[] bytes = buffer.array();
+    int start = 0;
+    for (int i = 0; i < n; i++) {
+      if (bytes[i] == '\n') {
+        if (partialLength > 0) {
+          append(bytes, start, i - start);
+          lines.add(decode(partial, 0, partialLength));
+          partialLength = 0;
+        } else {
+          lines.add(decode(bytes, start, i - start));
+        }
+        start = i + 1;
+      }
+    }
+    append(bytes, start, n - start);
+  }
+
+  private void append(byte[] bytes, int start, int length) {
+    if (partialLength + length > partial.length) {
+      partial = Arrays.copyOf(partial,
+          Math.max(partialLength + length, 2 * partial.length));
+    }
+    System.arraycopy(bytes, start, partial, partialLength, length);
+    partialLength += length;
+  }
+
+  private static String decode(byte[] bytes, int start, int length) {
+    if (length > 0 && bytes[start + length - 1] == '\r') {
+      length--;
+    }
+    return new String(bytes, start, length, StandardCharsets.UTF_8);
+  }
+
+  private void await() {
+    try {
+      final WatchKey key = watcher.poll(POLL, TimeUnit.MILLISECONDS);
+      if (key != null) {
+        key.pollEvents();
+        key.reset();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    try {
+      while (lines.isEmpty()) {
+        if (!read()) {
+          await();
+        }
+      }
+      return true;
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  @Override
+  public String next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return lines.poll();
+  }
+}
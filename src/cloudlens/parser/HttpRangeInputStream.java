@@ -0,0 +1,194 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cloudlens.engine.CLException;
+
+// Downloads a remote file with several connections, each fetching a chunk
+// of CHUNK bytes with a Range request. Chunks are returned in order, with at
+// most one chunk per connection in memory. A failed or interrupted chunk is
+// requested again from its last received byte, up to RETRIES times; If-Range
+// makes sure all chunks come from the same version of the file. Servers that
+// do not support ranges are read with a single GET.
+public class HttpRangeInputStream extends InputStream {
+  public static final int CONNECTIONS = 4;
+  private static final int CHUNK = 1 << 22;
+  private static final int RETRIES = 5;
+
+  private final String url;
+  private final long length;
+  private final String validator;
+  private final int chunkSize;
+  private final ExecutorService executor;
+  private final ArrayDeque<Future<byte[]>> chunks = new ArrayDeque<>();
+  private long next = 0;
+  private byte[] chunk = new byte[0];
+  private int position = 0;
+
+  private HttpRangeInputStream(String url, long length, String validator,
+      int connections, int chunkSize) {
+    this.url = url;
+    this.length = length;
+    this.validator = validator;
+    this.chunkSize = chunkSize;
+    this.executor = Executors.newFixedThreadPool(connections, r -> {
+      final Thread t = new Thread(r, "cloudlens-http");
+      t.setDaemon(true);
+      return t;
+    });
+    for (int i = 0; i < connections; i++) {
+      submit();
+    }
+  }
+
+  public static InputStream open(String url) {
+    return open(url, CONNECTIONS, CHUNK);
+  }
+
+  public static InputStream open(String url, int connections, int chunkSize) {
+    try {
+      final HttpURLConnection head = FileReader.connect(url, "HEAD");
+      final long length = head.getContentLengthLong();
+      final String encoding = head.getContentEncoding();
+      String validator = head.getHeaderField("ETag");
+      if (validator == null || validator.startsWith("W/")) {
+        validator = head.getHeaderField("Last-Modified");
+      }
+      final boolean ranges = head.getResponseCode() == 200 && length > 0
+          && "bytes".equals(head.getHeaderField("Accept-Ranges"))
+          && (encoding == null || encoding.equals("identity"));
+      head.disconnect();
+      if (!ranges) {
+        return FileReader.connect(url, "GET").getInputStream();
+      }
+      return new HttpRangeInputStream(url, length, validator, connections,
+          chunkSize);
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  private void submit() {
+    if (next < length) {
+      final long start = next;
+      final int size = (int) Math.min(chunkSize, length - start);
+      chunks.add(executor.submit(() -> fetch(start, size)));
+      next += size;
+    }
+  }
+
+  private byte[] fetch(long start, int size) throws IOException {
+    final byte[] buffer = new byte[size];
+    int received = 0;
+    int failures = 0;
+    while (received < size) {
+      try {
+        final HttpURLConnection conn = FileReader.connect(url, "GET");
+        conn.setRequestProperty("Range",
+            "bytes=" + (start + received) + "-" + (start + size - 1));
+        if (validator != null) {
+          conn.setRequestProperty("If-Range", validator);
+        }
+        final int code = conn.getResponseCode();
+        if (code == 200) {
+          conn.disconnect();
+          throw new CLException("Remote file changed during download: " + url);
+        }
+        if (code != 206) {
+          throw new IOException("HTTP " + code + " for range request: " + url);
+        }
+        try (InputStream in = conn.getInputStream()) {
+          int n;
+          while (received < size
+              && (n = in.read(buffer, received, size - received)) != -1) {
+            received += n;
+          }
+        }
+        if (received < size) {
+          throw new IOException("Connection closed at offset "
+              + (start + received) + ": " + url);
+        }
+      } catch (final IOException e) {
+        // resume from the last received byte
+        if (++failures > RETRIES) {
+          throw e;
+        }
+      }
+    }
+    return buffer;
+  }
+
+  private boolean fill() throws IOException {
+    while (position == chunk.length) {
+      if (chunks.isEmpty()) {
+        executor.shutdown();
+        return false;
+      }
+      try {
+        chunk = chunks.poll().get();
+        position = 0;
+        submit();
+      } catch (final InterruptedException e) {
+        close();
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      } catch (final ExecutionException e) {
+        close();
+        if (e.getCause() instanceof CLException) {
+          throw (CLException) e.getCause();
+        }
+        throw new IOException(e.getCause().getMessage(), e.getCause());
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return fill() ? chunk[position++] & 0xFF : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!fill()) {
+      return -1;
+    }
+    final int n = Math.min(len, chunk.length - position);
+    System.arraycopy(chunk, position, b, off, n);
+    position += n;
+    return n;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,553 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.parser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import cloudlens.engine.CLException;
+
+// Walks a JSON document to the array at path (e.g. obj.field.array or
+// obj.items[0]) and returns the source text of its elements one at a time,
+// without holding the rest of the document in memory. Line breaks are
+// dropped from the element text, as when the whole document was joined into
+// a single line.
+//
+// As with JSON.parse, the last of duplicate keys wins: the value at the path
+// is copied to a spool (in memory, then in a temporary file) while the rest
+// of the objects on the path is read, and the elements are read back from
+// the spool.
+public class JsonArrayReader implements Iterator<String> {
+  private static final Pattern literal = Pattern
+      .compile("true|false|null|-?(0|[1-9]\\d*)(\\.\\d+)?([eE][+-]?\\d+)?");
+  // a path of property names and array indices, without escapes
+  private static final Pattern plain = Pattern
+      .compile("[A-Za-z_$][\\w$]*(\\.[A-Za-z_$][\\w$]*|\\[\\d+\\]"
+          + "|\\[\"[^\"\\\\]*\"\\]|\\['[^'\\\\]*'\\])*");
+  private static final Pattern segment = Pattern
+      .compile("([A-Za-z_$][\\w$]*)|\\[(\\d+)\\]|\\[\"([^\"\\\\]*)\"\\]"
+          + "|\\['([^'\\\\]*)'\\]");
+  private static final int NONE = -2;
+
+  private Reader in;
+  // characters read from in, not returned yet
+  private final char[] buffer = new char[1 << 13];
+  private int pos = 0;
+  private int limit = 0;
+  private final String path;
+  private int line = 1;
+  private int column = 0;
+  private int peeked = NONE;
+  private boolean done = false;
+  private String next = null;
+  private int nextLine;
+  // the characters read from buffer[copyFrom] on are copied there, if not
+  // null
+  private Spool copy = null;
+  private int copyFrom;
+  // the value at the path, once found
+  private Spool spool = null;
+
+  public JsonArrayReader(Reader in, String path) {
+    this.in = in;
+    this.path = path;
+    if (path != null) {
+      if (!find(segments(path), 0)) {
+        throw new CLException(
+            "Parse Error: the log stream " + path + " must be a json Array");
+      }
+      // the rest of the document is not read
+      close(this.in);
+      this.in = spool.reader();
+      pos = 0;
+      limit = 0;
+      line = spool.line;
+      column = spool.column;
+      peeked = NONE;
+    }
+    if (peek() != '[') {
+      notArray();
+    }
+    read();
+    if (peek() == ']') {
+      read();
+      end();
+    }
+  }
+
+  // the path is made of property names, [n] indices and ["name"] keys,
+  // e.g. obj.items[0]
+  public static boolean isPlain(String path) {
+    return plain.matcher(path).matches();
+  }
+
+  // the property names (strings) and indices (integers) of a plain path
+  private static List<Object> segments(String path) {
+    if (!isPlain(path)) {
+      throw new CLException("Invalid json path: " + path);
+    }
+    final List<Object> res = new ArrayList<>();
+    final Matcher m = segment.matcher(path);
+    while (m.find()) {
+      if (m.group(2) != null) {
+        res.add(Integer.parseInt(m.group(2)));
+      } else {
+        res.add((m.group(1) != null) ? m.group(1)
+            : (m.group(3) != null) ? m.group(3) : m.group(4));
+      }
+    }
+    return res;
+  }
+
+  public int line() {
+    return nextLine;
+  }
+
+  // the next character of in, or -1
+  private int nextChar() throws IOException {
+    if (pos == limit && !fill()) {
+      return -1;
+    }
+    return buffer[pos++];
+  }
+
+  // reads more characters into the buffer, or returns false at the end
+  private boolean fill() throws IOException {
+    if (copy != null) {
+      copy.write(buffer, copyFrom, limit - copyFrom);
+      copyFrom = 0;
+    }
+    limit = Math.max(in.read(buffer), 0);
+    pos = 0;
+    return limit > 0;
+  }
+
+  private int read() {
+    try {
+      final int c;
+      if (peeked != NONE) {
+        c = peeked;
+        peeked = NONE;
+      } else {
+        c = nextChar();
+      }
+      if (c == '\n') {
+        line++;
+        column = 0;
+      } else {
+        column++;
+      }
+      return c;
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  // the next non-whitespace character, left unread
+  private int peek() {
+    try {
+      while (true) {
+        if (peeked == NONE) {
+          peeked = nextChar();
+        }
+        if (peeked == ' ' || peeked == '\t' || peeked == '\n'
+            || peeked == '\r') {
+          read();
+        } else {
+          return peeked;
+        }
+      }
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  private CLException error(String message) {
+    return error(message, line, column + 1);
+  }
+
+  private CLException error(String message, int line, int column) {
+    return new CLException("Parse Error: invalid JSON at line " + line
+        + ", column " + column + ": " + message);
+  }
+
+  private void expect(char c) {
+    if (peek() != c) {
+      throw error("expected " + c);
+    }
+    read();
+  }
+
+  private void notArray() {
+    final int c = peek();
+    if (c != '{' && c != '[' && c != '"') {
+      final int l = line;
+      final int col = column + 1;
+      final String token = readLiteral(null);
+      if (!literal.matcher(token).matches()) {
+        throw error(
+            "unexpected " + (token.isEmpty() ? "end of input" : token), l,
+            col);
+      }
+    }
+    throw new CLException(
+        "Parse Error: the log stream " + path + " must be a json Array");
+  }
+
+  // reads the value at the reader position, and spools the value at
+  // path[k..] in it, if any. Of duplicate keys, the last one wins.
+  private boolean find(List<Object> path, int k) {
+    final Object key = path.get(k);
+    final int c = peek();
+    if (key instanceof Integer && c == '[') {
+      read();
+      boolean found = false;
+      for (int i = 0; peek() != ']'; i++) {
+        if (i == (Integer) key) {
+          found = findValue(path, k);
+        } else {
+          readValue(null);
+        }
+        if (peek() == ',') {
+          read();
+        } else if (peek() != ']') {
+          throw error("expected , or ]");
+        }
+      }
+      read();
+      return found;
+    }
+    if (!(key instanceof String) || c != '{') {
+      if (k == 0) {
+        notArray();
+      }
+      readValue(null);
+      return false;
+    }
+    read();
+    if (peek() == '}') {
+      read();
+      return false;
+    }
+    boolean found = false;
+    while (true) {
+      if (peek() != '"') {
+        throw error("expected a property name");
+      }
+      final StringBuilder name = new StringBuilder();
+      append(name, read());
+      readString(name);
+      expect(':');
+      // property names are identifiers: compare without unescaping
+      if (name.toString().equals("\"" + key + "\"")) {
+        found = findValue(path, k);
+      } else {
+        readValue(null);
+      }
+      if (peek() == ',') {
+        read();
+      } else if (peek() == '}') {
+        read();
+        return found;
+      } else {
+        throw error("expected , or }");
+      }
+    }
+  }
+
+  // the value of path[k] at the reader position replaces the one found
+  // before, if any
+  private boolean findValue(List<Object> path, int k) {
+    if (spool != null) {
+      spool.discard();
+      spool = null;
+    }
+    if (k + 1 < path.size()) {
+      return find(path, k + 1);
+    }
+    // the character peeked is the last one taken from the buffer
+    peek();
+    spool = new Spool(line, column);
+    copy = spool;
+    copyFrom = Math.max(pos - 1, 0);
+    try {
+      readValue(null);
+      final int end = (peeked != NONE && peeked != -1) ? pos - 1 : pos;
+      copy.write(buffer, copyFrom, end - copyFrom);
+    } finally {
+      copy = null;
+    }
+    return true;
+  }
+
+  private void append(StringBuilder sb, int c) {
+    if (sb != null && c != '\n' && c != '\r') {
+      sb.append((char) c);
+    }
+  }
+
+  // reads the rest of a string whose opening quote has been read
+  private void readString(StringBuilder sb) {
+    while (true) {
+      final int c = read();
+      if (c == -1) {
+        throw error("unterminated string");
+      }
+      append(sb, c);
+      if (c == '\\') {
+        append(sb, read());
+      } else if (c == '"') {
+        return;
+      }
+    }
+  }
+
+  private String readLiteral(StringBuilder sb) {
+    final StringBuilder token = new StringBuilder();
+    while (true) {
+      final int c = (peeked != NONE) ? peeked : peekRaw();
+      if (c == -1 || c == ',' || c == ']' || c == '}' || c == ' '
+          || c == '\t' || c == '\n' || c == '\r') {
+        break;
+      }
+      token.append((char) read());
+    }
+    if (sb != null) {
+      sb.append(token);
+    }
+    return token.toString();
+  }
+
+  private int peekRaw() {
+    try {
+      peeked = nextChar();
+      return peeked;
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  private void readValue(StringBuilder sb) {
+    final int c = peek();
+    if (c == '"') {
+      append(sb, read());
+      readString(sb);
+    } else if ((c == '{' || c == '[') && sb == null) {
+      skipNested();
+    } else if (c == '{' || c == '[') {
+      int depth = 0;
+      do {
+        final int d = read();
+        if (d == -1) {
+          throw error("unexpected end of input");
+        }
+        append(sb, d);
+        if (d == '"') {
+          readString(sb);
+        } else if (d == '{' || d == '[') {
+          depth++;
+        } else if (d == '}' || d == ']') {
+          depth--;
+        }
+      } while (depth > 0);
+    } else if (readLiteral(sb).isEmpty()) {
+      throw error(c == -1 ? "unexpected end of input"
+          : "unexpected " + (char) c);
+    }
+  }
+
+  // skips the object or array whose first character is peeked, scanning the
+  // buffer without a call per character
+  private void skipNested() {
+    try {
+      peeked = NONE;
+      column++;
+      int depth = 1;
+      boolean string = false;
+      boolean escaped = false;
+      while (true) {
+        if (pos == limit && !fill()) {
+          throw error(string ? "unterminated string"
+              : "unexpected end of input");
+        }
+        final char d = buffer[pos++];
+        if (d == '\n') {
+          line++;
+          column = 0;
+        } else {
+          column++;
+        }
+        if (string) {
+          if (escaped) {
+            escaped = false;
+          } else if (d == '\\') {
+            escaped = true;
+          } else if (d == '"') {
+            string = false;
+          }
+        } else if (d == '"') {
+          string = true;
+        } else if (d == '{' || d == '[') {
+          depth++;
+        } else if ((d == '}' || d == ']') && --depth == 0) {
+          return;
+        }
+      }
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next == null && !done) {
+      final StringBuilder sb = new StringBuilder();
+      peek();
+      nextLine = line;
+      readValue(sb);
+      next = sb.toString();
+      final int c = peek();
+      if (c != ',' && c != ']') {
+        throw error("expected , or ]");
+      }
+      read();
+      if (c == ']') {
+        end();
+      }
+    }
+    return next != null;
+  }
+
+  @Override
+  public String next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    final String res = next;
+    next = null;
+    return res;
+  }
+
+  private void end() {
+    done = true;
+    if (spool != null) {
+      close(in);
+    }
+  }
+
+  private static void close(Reader reader) {
+    try {
+      reader.close();
+    } catch (final IOException e) {
+      // ignore
+    }
+  }
+
+  // the text of a value, kept in memory up to MEMORY characters, and then in
+  // a temporary file deleted once read
+  private static class Spool extends Writer {
+    private static final int MEMORY = 1 << 20;
+
+    // where the value starts in the document
+    final int line;
+    final int column;
+    private final StringBuilder buffer = new StringBuilder();
+    private Path file = null;
+    private Writer out = null;
+
+    Spool(int line, int column) {
+      this.line = line;
+      this.column = column;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+      try {
+        if (out == null && buffer.length() + len > MEMORY) {
+          file = Files.createTempFile("cloudlens-json", ".tmp");
+          file.toFile().deleteOnExit();
+          out = new OutputStreamWriter(Files.newOutputStream(file),
+              StandardCharsets.UTF_8);
+          out.append(buffer);
+          buffer.setLength(0);
+        }
+        if (out != null) {
+          out.write(cbuf, off, len);
+        } else {
+          buffer.append(cbuf, off, len);
+        }
+      } catch (final IOException e) {
+        throw new CLException(
+            "Cannot write json value to disk: " + e.getMessage());
+      }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (out != null) {
+        out.close();
+      }
+    }
+
+    Reader reader() {
+      if (file == null) {
+        return new StringReader(buffer.toString());
+      }
+      try {
+        close();
+        return new BufferedReader(new InputStreamReader(
+            Files.newInputStream(file, StandardOpenOption.DELETE_ON_CLOSE),
+            StandardCharsets.UTF_8));
+      } catch (final IOException e) {
+        throw new CLException(
+            "Cannot read json value from disk: " + e.getMessage());
+      }
+    }
+
+    void discard() {
+      try {
+        close();
+        if (file != null) {
+          Files.deleteIfExists(file);
+        }
+      } catch (final IOException e) {
+        // ignore
+      }
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.parser;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cloudlens.engine.CLException;
+
+// Reads and decodes lines on a producer thread into a bounded, preallocated
+// ring buffer consumed by the pipeline. Each line is published as soon as it
+// is read, so that a source that blocks (stdin, a followed file) does not
+// hold back the lines before, and the lines read before an error are not
+// lost. The consumer takes lines in batches, and the lock is only taken to
+// wait for lines or room, and once per batch. Occupancy statistics tell
+// whether the consumer waits for input (I/O-bound) or the producer waits for
+// room (CPU-bound).
+public class LineRingBuffer implements Iterator<String> {
+  private static final int BATCH = 256;
+
+  private final String[] ring;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final Thread producer;
+  // written by the consumer and the producer only
+  private volatile long head = 0;
+  private volatile long tail = 0;
+  private volatile boolean done = false;
+  private volatile RuntimeException error = null;
+  // set under the lock before checking for lines or room, so that the other
+  // side signals the condition after it moves head or tail
+  private volatile boolean consumerWaiting = false;
+  private volatile boolean producerWaiting = false;
+
+  // consumer side
+  private final String[] batch;
+  private int index = 0;
+  private int count = 0;
+
+  // statistics, guarded by lock
+  private long takes = 0;
+  private long occupancy = 0;
+  private long emptyWaits = 0;
+  private long fullWaits = 0;
+
+  public LineRingBuffer(Iterator<String> lines, int capacity) {
+    if (capacity < 1) {
+      throw new CLException("Invalid read-ahead capacity: " + capacity);
+    }
+    ring = new String[capacity];
+    batch = new String[Math.min(BATCH, capacity)];
+    producer = new Thread(() -> produce(lines), "cloudlens-read-ahead");
+    producer.setDaemon(true);
+    producer.start();
+  }
+
+  private void produce(Iterator<String> lines) {
+    try {
+      while (lines.hasNext()) {
+        put(lines.next());
+      }
+    } catch (final InterruptedException e) {
+      return;
+    } catch (final RuntimeException e) {
+      // the lines before are in the ring
+      error = e;
+    }
+    lock.lock();
+    try {
+      done = true;
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void put(String line) throws InterruptedException {
+    if (tail - head == ring.length) {
+      lock.lock();
+      try {
+        producerWaiting = true;
+        if (tail - head == ring.length) {
+          fullWaits++;
+          do {
+            notFull.await();
+          } while (tail - head == ring.length);
+        }
+      } finally {
+        producerWaiting = false;
+        lock.unlock();
+      }
+    }
+    ring[(int) (tail % ring.length)] = line;
+    tail = tail + 1;
+    if (consumerWaiting) {
+      lock.lock();
+      try {
+        notEmpty.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  // moves up to a batch of lines from the ring to the consumer
+  private boolean take() {
+    if (head == tail && !done) {
+      lock.lock();
+      try {
+        consumerWaiting = true;
+        if (head == tail && !done) {
+          emptyWaits++;
+          do {
+            notEmpty.await();
+          } while (head == tail && !done);
+        }
+      } catch (final InterruptedException e) {
+        producer.interrupt();
+        Thread.currentThread().interrupt();
+        throw new CLException(e.getMessage());
+      } finally {
+        consumerWaiting = false;
+        lock.unlock();
+      }
+    }
+    final long first = head;
+    final long last = tail;
+    count = 0;
+    index = 0;
+    long h = first;
+    while (count < batch.length && h < last) {
+      final int slot = (int) (h++ % ring.length);
+      batch[count++] = ring[slot];
+      ring[slot] = null;
+    }
+    head = h;
+    lock.lock();
+    try {
+      takes++;
+      occupancy += last - first;
+      if (producerWaiting) {
+        notFull.signal();
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (count == 0 && error != null) {
+      throw error;
+    }
+    return count > 0;
+  }
+
+  @Override
+  public boolean hasNext() {
+    return index < count || take();
+  }
+
+  @Override
+  public String next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    final String line = batch[index];
+    batch[index++] = null;
+    return line;
+  }
+
+  public int capacity() {
+    return ring.length;
+  }
+
+  // lines currently buffered
+  public int occupancy() {
+    lock.lock();
+    try {
+      return (int) (tail - head);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public String report() {
+    lock.lock();
+    try {
+      final long average = (takes == 0) ? 0
+          : occupancy * 100 / takes / ring.length;
+      return "Read-ahead: capacity " + ring.length + " lines, average occupancy "
+          + average + "%, consumer waited " + emptyWaits
+          + " times (I/O-bound), producer waited " + fullWaits
+          + " times (CPU-bound)";
+    } finally {
+      lock.unlock();
+    }
+  }
+}
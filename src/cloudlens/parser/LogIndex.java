@@ -0,0 +1,223 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.zip.CRC32;
+
+import cloudlens.engine.CLException;
+
+// A sidecar index (file.clidx) mapping line numbers and timestamps to byte
+// offsets in a log file. Every STRIDE lines or so, the index records the
+// number of lines before an offset and the latest timestamp of the lines
+// that follow, up to the next entry. It is built on first use and extended
+// when the log grows; it is rebuilt if the start of the log or the last
+// indexed block changed, or if the timestamp regex differs.
+public class LogIndex {
+  private static final int MAGIC = 0x434c4958;
+  private static final int VERSION = 1;
+  private static final int STRIDE = 1024;
+  private static final int CHECK = 4096;
+
+  private final FileChannel channel;
+  private String timestamp;
+  private int count = 0;
+  private long[] lines = new long[64];
+  private long[] offsets = new long[64];
+  private long[] maxTimes = new long[64];
+
+  private LogIndex(FileChannel channel, String timestamp) {
+    this.channel = channel;
+    this.timestamp = (timestamp == null) ? "" : timestamp;
+  }
+
+  public static LogIndex open(String fileName, FileChannel channel,
+      LogSelection selection) {
+    final Path sidecar = Paths.get(fileName + ".clidx");
+    final LogIndex index = new LogIndex(channel, selection.timestamp);
+    if (!index.load(sidecar)) {
+      index.timestamp = (selection.timestamp == null) ? ""
+          : selection.timestamp;
+      index.count = 0;
+      index.add(0, 0);
+    }
+    // an index with timestamps also serves line ranges
+    index.extend(index.timestamp.isEmpty() ? selection
+        : new LogSelection(index.timestamp, null, null, null));
+    try {
+      index.save(sidecar);
+    } catch (final IOException e) {
+      // read-only location: keep the index in memory
+    }
+    return index;
+  }
+
+  private void add(long line, long offset) {
+    if (count == lines.length) {
+      lines = Arrays.copyOf(lines, 2 * count);
+      offsets = Arrays.copyOf(offsets, 2 * count);
+      maxTimes = Arrays.copyOf(maxTimes, 2 * count);
+    }
+    lines[count] = line;
+    offsets[count] = offset;
+    maxTimes[count] = Long.MIN_VALUE;
+    count++;
+  }
+
+  private long crc(long offset, int length) throws IOException {
+    final ByteBuffer bytes = ByteBuffer.allocate(length);
+    while (bytes.hasRemaining()
+        && channel.read(bytes, offset + bytes.position()) > 0) {
+      // read fully
+    }
+    final CRC32 crc = new CRC32();
+    crc.update(bytes.array(), 0, bytes.position());
+    return crc.getValue();
+  }
+
+  private long headCrc() throws IOException {
+    return crc(0, (int) Math.min(CHECK, offsets[count - 1]));
+  }
+
+  private long tailCrc() throws IOException {
+    final long end = offsets[count - 1];
+    final int length = (int) Math.min(CHECK, end);
+    return crc(end - length, length);
+  }
+
+  private boolean load(Path sidecar) {
+    if (!Files.exists(sidecar)) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(sidecar)))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return false;
+      }
+      final String regex = in.readUTF();
+      if (!regex.equals(timestamp) && !timestamp.isEmpty()) {
+        return false;
+      }
+      timestamp = regex;
+      final long head = in.readLong();
+      final long tail = in.readLong();
+      final int n = in.readInt();
+      count = 0;
+      for (int i = 0; i < n; i++) {
+        add(in.readLong(), in.readLong());
+        maxTimes[i] = in.readLong();
+      }
+      return count > 0 && offsets[count - 1] <= channel.size()
+          && head == headCrc() && tail == tailCrc();
+    } catch (final IOException e) {
+      return false;
+    }
+  }
+
+  private void save(Path sidecar) throws IOException {
+    final Path tmp = Paths.get(sidecar + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(timestamp);
+      out.writeLong(headCrc());
+      out.writeLong(tailCrc());
+      out.writeInt(count);
+      for (int i = 0; i < count; i++) {
+        out.writeLong(lines[i]);
+        out.writeLong(offsets[i]);
+        out.writeLong(maxTimes[i]);
+      }
+    }
+    Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  // indexes the lines after the last entry
+  private void extend(LogSelection selection) {
+    try {
+      final long size = channel.size();
+      final int last = count - 1;
+      long line = lines[last];
+      maxTimes[last] = Long.MIN_VALUE;
+      final MappedLineReader reader = new MappedLineReader(
+          Collections.singletonList(
+              new MappedLineReader.Range(channel, offsets[last], size)),
+          true, false);
+      while (true) {
+        final long offset = reader.offset();
+        if (line - lines[count - 1] >= STRIDE && offset >= 0
+            && offset < size) {
+          add(line, offset);
+        }
+        if (!reader.hasNext()) {
+          break;
+        }
+        final String text = reader.next();
+        line++;
+        if (selection.hasTimestamp()) {
+          maxTimes[count - 1] = Math.max(maxTimes[count - 1],
+              selection.timestamp(text));
+        }
+      }
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  // the lines of the log in the selection, read from the closest entry
+  public Iterator<String> select(LogSelection selection) {
+    try {
+      int entry = 0;
+      while (entry + 1 < count
+          && lines[entry + 1] < selection.firstLine) {
+        entry++;
+      }
+      if (selection.since != Long.MIN_VALUE) {
+        while (entry < count && maxTimes[entry] < selection.since) {
+          entry++;
+        }
+        if (entry == count) {
+          channel.close();
+          return Collections.emptyIterator();
+        }
+      }
+      final MappedLineReader reader = new MappedLineReader(
+          Collections.singletonList(new MappedLineReader.Range(channel,
+              offsets[entry], channel.size())),
+          true, true);
+      return selection.select(reader, lines[entry]);
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.parser;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import cloudlens.engine.CLException;
+
+// A region of a log file: a range of line numbers (from 1) and/or a range of
+// timestamps. Timestamps are found with a regex whose first Date capture
+// gives the format, as in match rules, e.g. (?<t:Date[yyyy-MM-dd HH:mm:ss]>.*)
+// Lines without a timestamp belong to the last line with one, and logs are
+// assumed to be in time order: reading stops at the first timestamp after
+// until.
+public class LogSelection {
+  private static final Pattern date = Pattern.compile(
+      "\\(\\?<([a-zA-Z][a-zA-Z0-9]*)\\s*:\\s*Date\\[([^\\]]+)\\]>");
+  private static final Pattern property = Pattern
+      .compile("\\(\\?<([a-zA-Z][a-zA-Z0-9]*)(?:\\s*:\\s*[^>]*)?>");
+
+  public final String timestamp;
+  public final long firstLine;
+  public final long lastLine;
+  public final long since;
+  public final long until;
+  private final Matcher matcher;
+  private final String group;
+  private final SimpleDateFormat format;
+
+  public LogSelection(String timestamp, String lines, String since,
+      String until) {
+    this.timestamp = timestamp;
+    if (timestamp != null) {
+      final Matcher m = date.matcher(timestamp);
+      if (!m.find()) {
+        throw new CLException(
+            "Invalid timestamp: a capture of type Date[format] is required.");
+      }
+      group = m.group(1);
+      format = new SimpleDateFormat(m.group(2));
+      matcher = Pattern.compile(property.matcher(timestamp).replaceAll("(?<$1>"))
+          .matcher("");
+    } else if (since != null || until != null) {
+      throw new CLException("-since and -until require -timestamp.");
+    } else {
+      group = null;
+      format = null;
+      matcher = null;
+    }
+    this.since = (since == null) ? Long.MIN_VALUE : parse(since);
+    this.until = (until == null) ? Long.MAX_VALUE : parse(until);
+    if (lines == null) {
+      firstLine = 1;
+      lastLine = Long.MAX_VALUE;
+    } else {
+      final String[] range = lines.split(":", -1);
+      try {
+        if (range.length != 2) {
+          throw new NumberFormatException();
+        }
+        firstLine = range[0].isEmpty() ? 1 : Long.parseLong(range[0]);
+        lastLine = range[1].isEmpty() ? Long.MAX_VALUE
+            : Long.parseLong(range[1]);
+      } catch (final NumberFormatException e) {
+        throw new CLException("Invalid line range: " + lines
+            + " (expected first:last).");
+      }
+    }
+  }
+
+  private long parse(String time) {
+    try {
+      return format.parse(time).getTime();
+    } catch (final ParseException e) {
+      throw new CLException("Invalid time: " + time + " (expected "
+          + format.toPattern() + ").");
+    }
+  }
+
+  public boolean hasTimestamp() {
+    return matcher != null;
+  }
+
+  // the timestamp of a line, or Long.MIN_VALUE
+  public long timestamp(String line) {
+    if (matcher == null || !matcher.reset(line).find()) {
+      return Long.MIN_VALUE;
+    }
+    final String value = matcher.group(group);
+    try {
+      return (value == null) ? Long.MIN_VALUE : format.parse(value).getTime();
+    } catch (final ParseException e) {
+      return Long.MIN_VALUE;
+    }
+  }
+
+  // the selected lines of a file, where lines has already skipped the
+  // first skipped lines of the file
+  public Iterator<String> select(Iterator<String> lines, long skipped) {
+    return new Iterator<String>() {
+      private long number = skipped;
+      private boolean started = (since == Long.MIN_VALUE);
+      private boolean done = false;
+      private String next = null;
+
+      @Override
+      public boolean hasNext() {
+        while (next == null && !done) {
+          if (!lines.hasNext() || number >= lastLine) {
+            done = true;
+            break;
+          }
+          final String line = lines.next();
+          number++;
+          if (number < firstLine) {
+            continue;
+          }
+          final long t = timestamp(line);
+          if (t != Long.MIN_VALUE) {
+            if (t > until) {
+              done = true;
+              break;
+            }
+            started |= t >= since;
+          }
+          if (started) {
+            next = line;
+          }
+        }
+        return next != null;
+      }
+
+      @Override
+      public String next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final String res = next;
+        next = null;
+        return res;
+      }
+    };
+  }
+}
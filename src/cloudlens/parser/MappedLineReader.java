@@ -0,0 +1,337 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.parser;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.LongToIntFunction;
+
+import cloudlens.engine.CLException;
+
+// Splits memory-mapped byte ranges of local files into lines at the byte
+// level. Ranges are read in sequence and the end of a range ends a line.
+// Line breaks and end of input follow Scanner.nextLine()/hasNext(): \n, \r
+// and \r\n end a line, and trailing whitespace at the end of the input is
+// ignored.
+public class MappedLineReader implements Iterator<String> {
+  private static final long WINDOW = 1 << 28;
+
+  public static class Range {
+    public final FileChannel channel;
+    public final long start;
+    public final long end;
+
+    public Range(FileChannel channel, long start, long end) {
+      this.channel = channel;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  private final List<Range> ranges;
+  private final boolean keepTail;
+  private final boolean closeChannels;
+  private int current = -1;
+  private FileChannel channel;
+  private long size;
+  private long position;
+  private MappedByteBuffer buffer;
+  private long bufferStart;
+  private byte[] bytes = new byte[256];
+  private final ArrayDeque<String> pending = new ArrayDeque<>();
+
+  // with keepTail, whitespace lines at the end of the input are returned
+  // (used when more input follows)
+  public MappedLineReader(List<Range> ranges, boolean keepTail,
+      boolean closeChannels) {
+    this.ranges = ranges;
+    this.keepTail = keepTail;
+    this.closeChannels = closeChannels;
+    nextRange();
+  }
+
+  public static MappedLineReader open(String... fileNames) {
+    return new MappedLineReader(ranges(channels(fileNames)), false, true);
+  }
+
+  public static List<FileChannel> channels(String... fileNames) {
+    final List<FileChannel> channels = new ArrayList<>();
+    try {
+      for (final String name : fileNames) {
+        channels.add(new RandomAccessFile(name, "r").getChannel());
+      }
+      return channels;
+    } catch (final IOException e) {
+      close(channels);
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  public static void close(List<FileChannel> channels) {
+    for (final FileChannel c : channels) {
+      try {
+        c.close();
+      } catch (final IOException exn) {
+        // ignore
+      }
+    }
+  }
+
+  // whole files
+  public static List<Range> ranges(List<FileChannel> channels) {
+    final List<Range> ranges = new ArrayList<>();
+    try {
+      for (final FileChannel c : channels) {
+        ranges.add(new Range(c, 0, c.size()));
+      }
+      return ranges;
+    } catch (final IOException e) {
+      close(channels);
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  private void nextRange() {
+    try {
+      final Range next = (++current < ranges.size()) ? ranges.get(current)
+          : null;
+      if (closeChannels && channel != null
+          && (next == null || next.channel != channel)) {
+        channel.close();
+      }
+      buffer = null;
+      channel = (next != null) ? next.channel : null;
+      size = (next != null) ? next.end : 0;
+      position = (next != null) ? next.start : 0;
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  private void map(long offset, long length) {
+    try {
+      bufferStart = offset;
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+          Math.min(length, size - offset));
+    } catch (final IOException e) {
+      throw new CLException(e.getMessage());
+    }
+  }
+
+  private byte byteAt(long offset) {
+    if (buffer == null || offset < bufferStart
+        || offset >= bufferStart + buffer.limit()) {
+      map(offset, WINDOW);
+    }
+    return buffer.get((int) (offset - bufferStart));
+  }
+
+  private static boolean isBlank(int b) {
+    return b == ' ' || (b >= '\t' && b <= '\r') || (b >= 0x1C && b <= 0x1F);
+  }
+
+  // the bytes from start to end decode to whitespace only
+  private static boolean blank(LongToIntFunction byteAt, long start,
+      long end) {
+    long i = start;
+    while (i < end) {
+      final int b = byteAt.applyAsInt(i);
+      if (b >= 0) {
+        if (!isBlank(b)) {
+          return false;
+        }
+        i++;
+        continue;
+      }
+      // non-ASCII: decode one UTF-8 code point
+      final int n = ((b & 0xE0) == 0xC0) ? 2
+          : ((b & 0xF0) == 0xE0) ? 3 : ((b & 0xF8) == 0xF0) ? 4 : 0;
+      if (n == 0 || i + n > end) {
+        return false;
+      }
+      int c = b & (0x7F >> n);
+      for (int k = 1; k < n; k++) {
+        final int d = byteAt.applyAsInt(i + k);
+        if ((d & 0xC0) != 0x80) {
+          return false;
+        }
+        c = (c << 6) | (d & 0x3F);
+      }
+      if (!Character.isWhitespace(c)) {
+        return false;
+      }
+      i += n;
+    }
+    return true;
+  }
+
+  private static boolean blank(Range range) {
+    final ByteBuffer chunk = ByteBuffer.allocate(4096);
+    final long[] chunkStart = { -1 };
+    return blank(offset -> {
+      if (chunkStart[0] < 0 || offset < chunkStart[0]
+          || offset >= chunkStart[0] + chunk.limit()) {
+        try {
+          chunk.clear();
+          chunkStart[0] = offset;
+          range.channel.read(chunk, offset);
+          chunk.flip();
+        } catch (final IOException e) {
+          throw new CLException(e.getMessage());
+        }
+      }
+      return chunk.get((int) (offset - chunkStart[0]));
+    }, range.start, range.end);
+  }
+
+  private boolean blankTail() {
+    if (channel != null && !blank(this::byteAt, position, size)) {
+      return false;
+    }
+    for (int r = current + 1; r < ranges.size(); r++) {
+      if (!blank(ranges.get(r))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  static boolean isBlank(String line) {
+    for (int i = 0; i < line.length(); i++) {
+      if (!Character.isWhitespace(line.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean blankPending() {
+    for (final String line : pending) {
+      if (!isBlank(line)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // the offset of the next line, or -1 if the next line is the rest of a
+  // line split at a Unicode line separator
+  public long offset() {
+    return (channel != null && pending.isEmpty()) ? position : -1;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (keepTail) {
+      while (pending.isEmpty() && channel != null && position == size) {
+        nextRange();
+      }
+      return !pending.isEmpty() || channel != null;
+    }
+    if (blankPending() && blankTail()) {
+      pending.clear();
+      while (channel != null) {
+        nextRange();
+      }
+      return false;
+    }
+    while (pending.isEmpty() && position == size) {
+      nextRange();
+    }
+    return true;
+  }
+
+  @Override
+  public String next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    if (!pending.isEmpty()) {
+      return pending.poll();
+    }
+    byteAt(position);
+    int start = (int) (position - bufferStart);
+    int i = start;
+    int limit = buffer.limit();
+    boolean ascii = true;
+    byte b = 0;
+    while (true) {
+      if (i == limit) {
+        if (bufferStart + limit == size) {
+          break;
+        }
+        // the line crosses the end of the window: remap from its start
+        final long length = Math.min(Math.max(WINDOW, 2L * (i - start)),
+            Integer.MAX_VALUE);
+        if (length <= i - start) {
+          throw new CLException("Line too long at offset " + position);
+        }
+        map(position, length);
+        i -= start;
+        start = 0;
+        limit = buffer.limit();
+        continue;
+      }
+      b = buffer.get(i);
+      if (b == '\n' || b == '\r') {
+        break;
+      }
+      ascii &= b >= 0;
+      i++;
+    }
+
+    final int length = i - start;
+    if (length > bytes.length) {
+      bytes = new byte[Math.max(length, 2 * bytes.length)];
+    }
+    buffer.position(start);
+    buffer.get(bytes, 0, length);
+    final long end = bufferStart + i;
+
+    if (end == size) {
+      position = size;
+    } else if (b == '\r' && end + 1 < size && byteAt(end + 1) == '\n') {
+      position = end + 2;
+    } else {
+      position = end + 1;
+    }
+
+    if (ascii) {
+      return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+    final String line = new String(bytes, 0, length, StandardCharsets.UTF_8);
+    final String[] lines = line.split("[\\u0085\\u2028\\u2029]", -1);
+    // a separator at the end of a range does not start another line
+    final int n = (end == size && lines[lines.length - 1].isEmpty())
+        ? lines.length - 1 : lines.length;
+    for (int j = 1; j < n; j++) {
+      pending.add(lines[j]);
+    }
+    return lines[0];
+  }
+}
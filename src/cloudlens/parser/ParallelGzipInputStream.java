@@ -0,0 +1,345 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.parser;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+// Decompresses a gzip file made of several members (e.g. concatenated gzip
+// files, or bgzip blocks) with several threads. The gzip format does not
+// record where members start, so the file is scanned for member headers, and
+// some matches may be bytes of compressed data. Workers inflate the matches,
+// up to one per thread ahead of the reader, and a match is returned only if
+// it starts where the previous member ended, so false matches are dropped. A
+// worker inflates up to MEMBER bytes of a member, and the reader the rest of
+// a larger one. As by GZIPInputStream, data after the last member that is
+// not a gzip header is ignored.
+public class ParallelGzipInputStream extends InputStream {
+  private static final int MEMBER = 1 << 22;
+  private static final int INPUT = 1 << 16;
+  private static final int SCAN = 1 << 20;
+
+  private final FileChannel channel;
+  private final long size;
+  private final int threads;
+  private final ExecutorService executor;
+  // the matches being inflated, by offset
+  private final TreeMap<Long, Future<Member>> pending = new TreeMap<>();
+  // the file is scanned for headers up to there
+  private long scanned = 0;
+  // start of the next member
+  private long position = 0;
+  private Member member = null;
+  private int index = 0;
+  private boolean eof = false;
+
+  public ParallelGzipInputStream(FileChannel channel, int threads)
+      throws IOException {
+    this.channel = channel;
+    this.size = channel.size();
+    this.threads = threads;
+    this.executor = Executors.newFixedThreadPool(threads, r -> {
+      final Thread t = new Thread(r, "cloudlens-inflater");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  // a gzip member, inflated from its start by a worker into data, then from
+  // there by the reader
+  private static class Member {
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final FileChannel channel;
+    private final Inflater inflater = new Inflater(true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] input = new byte[INPUT];
+    // offset of the compressed bytes not given to the inflater yet
+    private long offset;
+    // offset following the trailer, once inflated
+    private long end = -1;
+    private byte[] data = new byte[INPUT];
+    private int length = 0;
+
+    Member(FileChannel channel, long start) throws IOException {
+      this.channel = channel;
+      final ByteBuffer header = read(start, 10);
+      final int flags = header.get(3) & 0xFF;
+      if (!isHeader(header, 0)) {
+        throw new ZipException("Not in GZIP format");
+      }
+      long p = start + 10;
+      if ((flags & FEXTRA) != 0) {
+        p += 2 + (read(p, 2).getShort(0) & 0xFFFF);
+      }
+      if ((flags & FNAME) != 0) {
+        p = skipString(p);
+      }
+      if ((flags & FCOMMENT) != 0) {
+        p = skipString(p);
+      }
+      if ((flags & FHCRC) != 0) {
+        p += 2;
+      }
+      offset = p;
+    }
+
+    private ByteBuffer read(long p, int n) throws IOException {
+      final ByteBuffer res = ByteBuffer.allocate(n)
+          .order(ByteOrder.LITTLE_ENDIAN);
+      while (res.hasRemaining()) {
+        if (channel.read(res, p + res.position()) < 0) {
+          throw new EOFException("Unexpected end of ZLIB input stream");
+        }
+      }
+      return res;
+    }
+
+    // the offset following the zero byte that ends a string at p
+    private long skipString(long p) throws IOException {
+      final ByteBuffer chunk = ByteBuffer.allocate(256);
+      while (true) {
+        chunk.clear();
+        final int n = channel.read(chunk, p);
+        if (n < 0) {
+          throw new EOFException("Unexpected end of ZLIB input stream");
+        }
+        for (int i = 0; i < n; i++) {
+          if (chunk.get(i) == 0) {
+            return p + i + 1;
+          }
+        }
+        p += n;
+      }
+    }
+
+    boolean finished() {
+      return end >= 0;
+    }
+
+    // inflates up to len bytes, -1 once the member is finished
+    int inflate(byte[] b, int off, int len) throws IOException {
+      if (finished()) {
+        return -1;
+      }
+      try {
+        while (true) {
+          if (inflater.finished()) {
+            trailer();
+            return -1;
+          }
+          if (inflater.needsDictionary()) {
+            throw new ZipException("Corrupt GZIP member");
+          }
+          if (inflater.needsInput()) {
+            final int n = channel.read(ByteBuffer.wrap(input), offset);
+            if (n < 0) {
+              throw new EOFException("Unexpected end of ZLIB input stream");
+            }
+            offset += n;
+            inflater.setInput(input, 0, n);
+          }
+          final int n = inflater.inflate(b, off, len);
+          if (n > 0) {
+            crc.update(b, off, n);
+            return n;
+          }
+        }
+      } catch (final DataFormatException e) {
+        close();
+        throw new ZipException(e.getMessage());
+      } catch (final IOException e) {
+        close();
+        throw e;
+      }
+    }
+
+    private void trailer() throws IOException {
+      final long p = offset - inflater.getRemaining();
+      final ByteBuffer trailer = read(p, 8);
+      if ((trailer.getInt(0) & 0xFFFFFFFFL) != crc.getValue()
+          || (trailer.getInt(4) & 0xFFFFFFFFL) != (inflater.getBytesWritten()
+              & 0xFFFFFFFFL)) {
+        throw new ZipException("Corrupt GZIP trailer");
+      }
+      end = p + 8;
+      close();
+    }
+
+    // inflates into data, up to max bytes
+    Member buffer(int max) throws IOException {
+      int n = 0;
+      while (length < max && n != -1) {
+        if (length == data.length) {
+          data = Arrays.copyOf(data, Math.min(max, 2 * data.length));
+        }
+        n = inflate(data, length, data.length - length);
+        if (n > 0) {
+          length += n;
+        }
+      }
+      return this;
+    }
+
+    void close() {
+      inflater.end();
+    }
+  }
+
+  // a member header with the deflate method and no reserved flags
+  private static boolean isHeader(ByteBuffer b, int i) {
+    return b.get(i) == (byte) 0x1f && b.get(i + 1) == (byte) 0x8b
+        && b.get(i + 2) == 8 && (b.get(i + 3) & 0xE0) == 0;
+  }
+
+  // scans for headers until there is one match per thread being inflated
+  // after position, or MEMBER bytes per thread were scanned
+  private void scan() throws IOException {
+    scanned = Math.max(scanned, position);
+    final long limit = position + (long) threads * MEMBER;
+    final ByteBuffer chunk = ByteBuffer.allocate(SCAN);
+    while (pending.size() < threads && scanned < size && scanned < limit) {
+      chunk.clear();
+      int n = 0;
+      while (n < 4 && chunk.hasRemaining()
+          && channel.read(chunk, scanned + n) > 0) {
+        n = chunk.position();
+      }
+      for (int i = 0; i + 4 <= n; i++) {
+        if (isHeader(chunk, i)) {
+          final long start = scanned + i;
+          pending.put(start, executor
+              .submit(() -> new Member(channel, start).buffer(MEMBER)));
+        }
+      }
+      scanned = (n < 4) ? size : scanned + n - 3;
+    }
+  }
+
+  // the member starting at position, false if there is none
+  private boolean next() throws IOException {
+    // matches before position were bytes of compressed data
+    while (!pending.isEmpty() && pending.firstKey() < position) {
+      discard(pending.pollFirstEntry().getValue());
+    }
+    if (position >= size) {
+      return false;
+    }
+    scan();
+    final Future<Member> next = pending.remove(position);
+    if (next == null) {
+      if (position == 0) {
+        throw new ZipException("Not in GZIP format");
+      }
+      return false;
+    }
+    try {
+      member = next.get();
+    } catch (final ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+    index = 0;
+    return true;
+  }
+
+  private static void discard(Future<Member> f) {
+    // not interrupted: an interrupted read would close the channel
+    if (!f.cancel(false)) {
+      try {
+        f.get().close();
+      } catch (InterruptedException | ExecutionException e) {
+        // dropped
+      }
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    final byte[] b = new byte[1];
+    return (read(b, 0, 1) == -1) ? -1 : b[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (!eof) {
+      if (member == null && !next()) {
+        close();
+        return -1;
+      }
+      if (index < member.length) {
+        final int n = Math.min(len, member.length - index);
+        System.arraycopy(member.data, index, b, off, n);
+        index += n;
+        return n;
+      }
+      final int n = member.inflate(b, off, len);
+      if (n != -1) {
+        return n;
+      }
+      position = member.end;
+      member = null;
+    }
+    return -1;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (eof) {
+      return;
+    }
+    eof = true;
+    for (final Map.Entry<Long, Future<Member>> e : pending.entrySet()) {
+      discard(e.getValue());
+    }
+    pending.clear();
+    if (member != null) {
+      member.close();
+      member = null;
+    }
+    executor.shutdown();
+    channel.close();
+  }
+}
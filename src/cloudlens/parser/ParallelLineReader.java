@@ -0,0 +1,218 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cloudlens.engine.CLException;
+
+// Reads and decodes log files concurrently into line buffers. Each file is
+// cut into byte ranges of up to CHUNK bytes, and each range is extended to
+// start and end on a line boundary by the worker reading it. Lines are
+// returned in file order, as by a MappedLineReader over the same files. At
+// most one buffer per thread is read ahead of the consumer, except to decide
+// whether trailing whitespace lines are the end of the input.
+public class ParallelLineReader implements Iterator<String> {
+  private static final long MIN_CHUNK = 1 << 20;
+  private static final long CHUNK = 1 << 23;
+
+  private final List<FileChannel> channels;
+  private final List<MappedLineReader.Range> units = new ArrayList<>();
+  private final int threads;
+  private final ExecutorService executor;
+  private final List<Future<List<String>>> buffers = new ArrayList<>();
+  private int current = 0;
+  private List<String> lines = Collections.emptyList();
+  private int index = 0;
+  // lines from tail on are whitespace only
+  private int tail = 0;
+
+  public ParallelLineReader(List<FileChannel> channels, int threads) {
+    this(channels, threads, MIN_CHUNK);
+  }
+
+  ParallelLineReader(List<FileChannel> channels, int threads, long minChunk) {
+    this.channels = channels;
+    this.threads = threads;
+    try {
+      for (final FileChannel channel : channels) {
+        final long size = channel.size();
+        final long chunk = Math.max(minChunk,
+            Math.min(CHUNK, (size + threads - 1) / threads));
+        long start = 0;
+        do {
+          final long end = Math.min(size, start + chunk);
+          units.add(new MappedLineReader.Range(channel, start, end));
+          start = end;
+        } while (start < size);
+      }
+    } catch (final IOException e) {
+      MappedLineReader.close(channels);
+      throw new CLException(e.getMessage());
+    }
+    this.executor = Executors.newFixedThreadPool(threads, r -> {
+      final Thread t = new Thread(r, "cloudlens-reader");
+      t.setDaemon(true);
+      return t;
+    });
+    for (int i = 0; i < units.size(); i++) {
+      buffers.add(null);
+    }
+    for (int i = 0; i < Math.min(threads, units.size()); i++) {
+      submit(i);
+    }
+  }
+
+  // the offset following the first line break at or after offset - 1, such
+  // that a line starting before offset belongs to the previous range
+  private static long align(FileChannel channel, long offset)
+      throws IOException {
+    final long size = channel.size();
+    if (offset == 0 || offset >= size) {
+      return Math.min(offset, size);
+    }
+    final ByteBuffer chunk = ByteBuffer.allocate(4096);
+    long position = offset - 1;
+    int n;
+    while ((n = channel.read(chunk, position)) > 0) {
+      for (int i = 0; i < n; i++) {
+        final byte b = chunk.get(i);
+        if (b == '\n') {
+          return position + i + 1;
+        }
+        if (b == '\r') {
+          // \r\n is a single line break
+          if (i + 1 < n) {
+            return position + i + ((chunk.get(i + 1) == '\n') ? 2 : 1);
+          }
+          final ByteBuffer next = ByteBuffer.allocate(1);
+          final boolean crlf = channel.read(next, position + i + 1) == 1
+              && next.get(0) == '\n';
+          return position + i + (crlf ? 2 : 1);
+        }
+      }
+      position += n;
+      chunk.clear();
+    }
+    return size;
+  }
+
+  private void submit(int i) {
+    final MappedLineReader.Range unit = units.get(i);
+    buffers.set(i, executor.submit(() -> {
+      final long start = align(unit.channel, unit.start);
+      final long end = align(unit.channel, unit.end);
+      final List<String> buffer = new ArrayList<>();
+      if (start < end) {
+        final Iterator<String> it = new MappedLineReader(
+            Collections.singletonList(
+                new MappedLineReader.Range(unit.channel, start, end)),
+            true, false);
+        while (it.hasNext()) {
+          buffer.add(it.next());
+        }
+      }
+      return buffer;
+    }));
+  }
+
+  private List<String> take(int i) {
+    try {
+      final List<String> buffer = buffers.get(i).get();
+      buffers.set(i, null);
+      return buffer;
+    } catch (final InterruptedException e) {
+      close();
+      Thread.currentThread().interrupt();
+      throw new CLException(e.getMessage());
+    } catch (final ExecutionException e) {
+      close();
+      if (e.getCause() instanceof CLException) {
+        throw (CLException) e.getCause();
+      }
+      throw new CLException(e.getCause().getMessage());
+    }
+  }
+
+  private void close() {
+    executor.shutdownNow();
+    MappedLineReader.close(channels);
+  }
+
+  private static int tail(List<String> lines) {
+    int i = lines.size();
+    while (i > 0 && MappedLineReader.isBlank(lines.get(i - 1))) {
+      i--;
+    }
+    return i;
+  }
+
+  @Override
+  public boolean hasNext() {
+    // trailing whitespace lines are returned only if a line follows that is
+    // not, as Scanner does
+    while (index >= tail) {
+      if (current == units.size()) {
+        executor.shutdown();
+        MappedLineReader.close(channels);
+        lines = Collections.emptyList();
+        index = 0;
+        tail = 0;
+        return false;
+      }
+      final List<String> buffer = take(current);
+      if (current + threads < units.size()) {
+        submit(current + threads);
+      }
+      current++;
+      if (index < lines.size()) {
+        final List<String> blank = new ArrayList<>(
+            lines.subList(index, lines.size()));
+        final int t = tail(buffer);
+        tail = (t > 0) ? blank.size() + t : 0;
+        blank.addAll(buffer);
+        lines = blank;
+      } else {
+        lines = buffer;
+        tail = tail(buffer);
+      }
+      index = 0;
+    }
+    return true;
+  }
+
+  @Override
+  public String next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return lines.get(index++);
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cloudlens.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Reads an input stream (e.g. a decompressor) on a background thread, up to
+// CHUNKS chunks ahead of the consumer.
+public class ReadAheadInputStream extends InputStream {
+  private static final int CHUNK = 1 << 16;
+  private static final int CHUNKS = 16;
+  private static final byte[] EOF = new byte[0];
+
+  private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(
+      CHUNKS);
+  private final Thread thread;
+  private volatile IOException error = null;
+  private byte[] chunk = null;
+  private int position = 0;
+
+  public ReadAheadInputStream(InputStream in) {
+    thread = new Thread(() -> produce(in), "cloudlens-read-ahead");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void produce(InputStream in) {
+    try {
+      int r = 0;
+      while (r != -1) {
+        final byte[] buffer = new byte[CHUNK];
+        int n = 0;
+        while (n < CHUNK && (r = in.read(buffer, n, CHUNK - n)) != -1) {
+          n += r;
+        }
+        if (n > 0) {
+          chunks.put((n == CHUNK) ? buffer : Arrays.copyOf(buffer, n));
+        }
+      }
+    } catch (final IOException e) {
+      error = e;
+    } catch (final InterruptedException e) {
+      // closed by the consumer
+      return;
+    } finally {
+      try {
+        in.close();
+      } catch (final IOException e) {
+        // ignore
+      }
+    }
+    try {
+      chunks.put(EOF);
+    } catch (final InterruptedException e) {
+      // closed by the consumer
+    }
+  }
+
+  private boolean fill() throws IOException {
+    if (chunk == EOF) {
+      return false;
+    }
+    if (chunk == null || position == chunk.length) {
+      try {
+        chunk = chunks.take();
+        position = 0;
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+      if (chunk == EOF) {
+        if (error != null) {
+          throw error;
+        }
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return fill() ? chunk[position++] & 0xFF : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!fill()) {
+      return -1;
+    }
+    final int n = Math.min(len, chunk.length - position);
+    System.arraycopy(chunk, position, b, off, n);
+    position += n;
+    return n;
+  }
+
+  @Override
+  public void close() {
+    thread.interrupt();
+  }
+}
@@ -22,7 +22,9 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
-@Suite.SuiteClasses({ TestsGood.class, TestsBad.class })
+@Suite.SuiteClasses({ TestsGood.class, TestsBad.class, TestsHttp.class,
+    TestsHistory.class, TestsLogCache.class, TestsReadAhead.class,
+    TestsFollow.class, TestsGzip.class, TestsPipelineQueue.class })
 
 public class CloudLensTests {
 }
@@ -0,0 +1,130 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package test;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cloudlens.parser.FollowLineReader;
+
+// Followed files: appended lines are read as they are written, a truncated
+// file is read again from the start, and a rotated file is read to its end
+// before the new one.
+public class TestsFollow {
+  private Path dir;
+  private Path log;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDirectory("cloudlens-follow");
+    log = dir.resolve("follow.log");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    for (final Path p : Files.newDirectoryStream(dir)) {
+      Files.delete(p);
+    }
+    Files.delete(dir);
+  }
+
+  private static void write(Path p, String s, StandardOpenOption... options)
+      throws Exception {
+    Files.write(p, s.getBytes(StandardCharsets.UTF_8), options);
+  }
+
+  // the next lines of the reader, which blocks when there are none
+  private static void expect(FollowLineReader reader, String... lines)
+      throws Exception {
+    final FutureTask<Void> consumer = new FutureTask<>(() -> {
+      for (final String line : lines) {
+        assertTrue(reader.hasNext());
+        assertEquals(line, reader.next());
+      }
+      return null;
+    });
+    new Thread(consumer).start();
+    consumer.get(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void append() throws Exception {
+    write(log, "a\nb\n");
+    final FollowLineReader reader = new FollowLineReader(log);
+    expect(reader, "a", "b");
+    // a line is read once complete
+    write(log, "c\nd", StandardOpenOption.APPEND);
+    expect(reader, "c");
+    write(log, "e\r\n", StandardOpenOption.APPEND);
+    expect(reader, "de");
+  }
+
+  @Test
+  public void appendWhileWaiting() throws Exception {
+    write(log, "a\n");
+    final FollowLineReader reader = new FollowLineReader(log);
+    expect(reader, "a");
+    final FutureTask<Void> consumer = new FutureTask<>(() -> {
+      assertTrue(reader.hasNext());
+      assertEquals("b", reader.next());
+      return null;
+    });
+    new Thread(consumer).start();
+    Thread.sleep(500);
+    assertFalse(consumer.isDone());
+    write(log, "b\n", StandardOpenOption.APPEND);
+    consumer.get(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void truncate() throws Exception {
+    write(log, "first\nsecond\n");
+    final FollowLineReader reader = new FollowLineReader(log);
+    expect(reader, "first", "second");
+    write(log, "x\n", StandardOpenOption.TRUNCATE_EXISTING);
+    expect(reader, "x");
+    write(log, "y\n", StandardOpenOption.APPEND);
+    expect(reader, "y");
+  }
+
+  @Test
+  public void rotate() throws Exception {
+    write(log, "a\n");
+    final FollowLineReader reader = new FollowLineReader(log);
+    expect(reader, "a");
+    final Path old = dir.resolve("follow.log.1");
+    Files.move(log, old);
+    // written to the old file after the rename, the last line incomplete
+    write(old, "b\nc", StandardOpenOption.APPEND);
+    write(log, "d\n", StandardOpenOption.CREATE_NEW);
+    expect(reader, "b", "c", "d");
+    write(log, "e\n", StandardOpenOption.APPEND);
+    expect(reader, "e");
+  }
+}
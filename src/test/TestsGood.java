@@ -18,6 +18,8 @@
 
 package test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 
 import org.junit.After;
@@ -27,8 +29,13 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
+// the good tests, run once per set of options in MODES: their output does
+// not depend on how the pipelines are executed
 @RunWith(Parameterized.class)
 public class TestsGood {
+  static final String[] MODES = { "", " -batch 2", " -batch 4 -parallel 3",
+      " -stages 2", " -compact", " -budget 1k" };
+
   Tester tester;
   String name;
   String options;
@@ -37,10 +44,10 @@ public class TestsGood {
   String output;
 
   public TestsGood(String name, String options, String log, String script,
-      String output) {
+      String output, String mode) {
     this.tester = new Tester();
     this.name = name;
-    this.options = options;
+    this.options = options + mode;
     this.log = log;
     this.script = script;
     this.output = output;
@@ -61,8 +68,16 @@ public class TestsGood {
     tester.test(this.options, this.log, this.script, this.output);
   }
 
-  @Parameters(name = "{0}")
+  @Parameters(name = "{0}{5}")
   public static Collection<Object[]> data() {
-    return Tester.getTests("tests/good", ".lens");
+    final Collection<Object[]> res = new ArrayList<>();
+    for (final String mode : MODES) {
+      for (final Object[] test : Tester.getTests("tests/good", ".lens")) {
+        final Object[] params = Arrays.copyOf(test, test.length + 1);
+        params[test.length] = mode;
+        res.add(params);
+      }
+    }
+    return res;
   }
 }
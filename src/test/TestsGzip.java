@@ -0,0 +1,183 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cloudlens.parser.ParallelGzipInputStream;
+
+// Multi-member gzip files inflated by several threads read as by
+// GZIPInputStream, including members holding bytes that look like headers.
+public class TestsGzip {
+  private Path file;
+
+  @Before
+  public void setUp() throws Exception {
+    file = Files.createTempFile("cloudlens", ".gz");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.delete(file);
+  }
+
+  private static byte[] member(byte[] data, int level) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+      {
+        def.setLevel(level);
+      }
+    }) {
+      gzip.write(data);
+    }
+    return out.toByteArray();
+  }
+
+  // a member with a file name and a comment
+  private static byte[] named(byte[] data) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(new byte[] { 0x1f, (byte) 0x8b, 8, 8 | 16, 0, 0, 0, 0, 0, 3 });
+    out.write("name.log\0comment\0".getBytes(StandardCharsets.UTF_8));
+    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    deflater.setInput(data);
+    deflater.finish();
+    final byte[] buffer = new byte[1 << 16];
+    while (!deflater.finished()) {
+      out.write(buffer, 0, deflater.deflate(buffer));
+    }
+    deflater.end();
+    final CRC32 crc = new CRC32();
+    crc.update(data);
+    for (final long v : new long[] { crc.getValue(), data.length }) {
+      for (int i = 0; i < 4; i++) {
+        out.write((int) (v >> (8 * i)));
+      }
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] lines(Random random, int n) {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < n; i++) {
+      sb.append("line ").append(random.nextInt()).append('\n');
+    }
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[1000];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  private void check(byte[] gz, int threads) throws IOException {
+    Files.write(file, gz);
+    final byte[] expected = readAll(
+        new GZIPInputStream(new ByteArrayInputStream(gz)));
+    final byte[] actual = readAll(new ParallelGzipInputStream(
+        FileChannel.open(file, StandardOpenOption.READ), threads));
+    assertArrayEquals(expected, actual);
+  }
+
+  @Test
+  public void members() throws Exception {
+    final Random random = new Random(42);
+    final ByteArrayOutputStream gz = new ByteArrayOutputStream();
+    for (int i = 0; i < 200; i++) {
+      gz.write(member(lines(random, random.nextInt(2000)),
+          Deflater.DEFAULT_COMPRESSION));
+      if (i % 10 == 0) {
+        // stored, with false headers in the compressed data
+        final byte[] data = lines(random, 100);
+        for (int j = 0; j < data.length - 4; j += 97) {
+          System.arraycopy(new byte[] { 0x1f, (byte) 0x8b, 8, 0 }, 0, data, j,
+              4);
+        }
+        gz.write(member(data, Deflater.NO_COMPRESSION));
+      }
+    }
+    gz.write(named(lines(random, 50)));
+    for (final int threads : new int[] { 1, 2, 4 }) {
+      check(gz.toByteArray(), threads);
+    }
+  }
+
+  @Test
+  public void large() throws Exception {
+    final Random random = new Random(7);
+    final ByteArrayOutputStream gz = new ByteArrayOutputStream();
+    gz.write(member(lines(random, 10), Deflater.DEFAULT_COMPRESSION));
+    // more than a worker inflates
+    gz.write(member(lines(random, 400000), Deflater.DEFAULT_COMPRESSION));
+    gz.write(member(lines(random, 10), Deflater.DEFAULT_COMPRESSION));
+    check(gz.toByteArray(), 3);
+  }
+
+  @Test
+  public void trailing() throws Exception {
+    final ByteArrayOutputStream gz = new ByteArrayOutputStream();
+    gz.write(member(lines(new Random(1), 100), Deflater.BEST_SPEED));
+    gz.write(new byte[] { 0, 0, 0, 0 });
+    check(gz.toByteArray(), 2);
+  }
+
+  @Test
+  public void corrupt() throws Exception {
+    final Random random = new Random(3);
+    final ByteArrayOutputStream gz = new ByteArrayOutputStream();
+    gz.write(member(lines(random, 100), Deflater.DEFAULT_COMPRESSION));
+    final byte[] second = member(lines(random, 100),
+        Deflater.DEFAULT_COMPRESSION);
+    // the crc of the second member
+    second[second.length - 8] ^= 1;
+    gz.write(second);
+    Files.write(file, gz.toByteArray());
+    try {
+      readAll(new ParallelGzipInputStream(
+          FileChannel.open(file, StandardOpenOption.READ), 2));
+      fail();
+    } catch (final IOException e) {
+      assertEquals("Corrupt GZIP trailer", e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cloudlens.block.BlockEngine;
+import cloudlens.block.BlockObject;
+import cloudlens.block.FieldPath;
+import cloudlens.block.JSEngine;
+import cloudlens.block.LazyEntry;
+import cloudlens.engine.CLException;
+import cloudlens.engine.HistoryStore;
+
+// Table-mode history: encoding of entries and spilling to disk.
+public class TestsHistory {
+  private final Tester tester = new Tester();
+  private BlockEngine engine;
+
+  @Before
+  public void setUp() {
+    tester.setUpStreams();
+    engine = new JSEngine();
+  }
+
+  @After
+  public void cleanUp() {
+    tester.cleanUpStreams();
+  }
+
+  @Test
+  public void values() {
+    final HistoryStore store = new HistoryStore(engine);
+    store.add(engine.eval("({s:'\\u00e9t\\u00e9 \\u2028', i:-42, d:0.5, b:true, n:null,"
+        + " t:1520850000000})"));
+    store.add(engine.eval("({nested:{a:1}})"));
+    store.add("plain line");
+    assertEquals(3, store.size());
+    assertEquals(1, store.objects());
+
+    final Iterator<BlockObject> it = store.iterator();
+    final Map<String, Object> first = it.next().asMap();
+    assertEquals("\u00e9t\u00e9 \u2028", first.get("s"));
+    assertEquals(-42, ((Number) first.get("i")).intValue());
+    assertEquals(0.5, ((Number) first.get("d")).doubleValue(), 0);
+    assertEquals(true, first.get("b"));
+    assertTrue(first.containsKey("n"));
+    assertNull(first.get("n"));
+    assertEquals(1520850000000L, ((Number) first.get("t")).longValue());
+    assertTrue(it.next().get("nested").isMap());
+    assertEquals("plain line", it.next().get("message").asString());
+    assertFalse(it.hasNext());
+  }
+
+  @Test
+  public void spill() {
+    final HistoryStore store = new HistoryStore(engine, 1);
+    final int n = 100000;
+    for (int i = 0; i < n; i++) {
+      store.add("2018-03-12 10:21:" + (i % 60) + " request " + i);
+    }
+    assertTrue(store.spilled() > 0);
+    for (int pass = 0; pass < 2; pass++) {
+      int i = 0;
+      for (final BlockObject entry : store) {
+        assertEquals("2018-03-12 10:21:" + (i % 60) + " request " + i,
+            entry.get("message").asString());
+        i++;
+      }
+      assertEquals(n, i);
+    }
+  }
+
+  @Test
+  public void cursors() {
+    final HistoryStore store = new HistoryStore(engine, 1);
+    for (int i = 0; i < 100000; i++) {
+      store.add("request " + i);
+    }
+    final Iterator<BlockObject> first = store.iterator();
+    final Iterator<BlockObject> second = store.iterator();
+    for (int i = 0; i < 50000; i++) {
+      assertEquals("request " + (2 * i), first.next().get("message")
+          .asString());
+      assertEquals("request " + (2 * i + 1), first.next().get("message")
+          .asString());
+      assertEquals("request " + i, second.next().get("message").asString());
+    }
+  }
+
+  @Test
+  public void shared() {
+    final HistoryStore base = new HistoryStore(engine);
+    for (int i = 0; i < 1000; i++) {
+      base.add("request " + i);
+    }
+    final HistoryStore next = new HistoryStore(engine, 0, base);
+    int i = 0;
+    // encoded size of the changed entries: field count, field id, tag and
+    // length, and the ASCII message
+    long changed = 0;
+    for (final BlockObject entry : base) {
+      if (i % 10 == 0) {
+        entry.put("tenth", true);
+        changed += 4 + ("request " + i).length();
+      }
+      next.add(entry);
+      i++;
+    }
+    assertEquals(1000, next.size());
+    assertEquals(base.bytes() - 8 * 1000 - changed, next.shared());
+    i = 0;
+    for (final BlockObject entry : next) {
+      assertEquals("request " + i, entry.get("message").asString());
+      assertEquals(i % 10 == 0, entry.containsKey("tenth"));
+      i++;
+    }
+  }
+
+  @Test
+  public void dictionaries() {
+    final HistoryStore store = new HistoryStore(engine);
+    final String[] levels = { "INFO", "WARN", "ERROR" };
+    final int n = 3000;
+    for (int i = 0; i < n; i++) {
+      final BlockObject entry = engine.newObject();
+      entry.put("message", levels[i % 3] + " request " + i);
+      entry.put("level", levels[i % 3]);
+      entry.put("id", "request " + i);
+      store.add(entry);
+    }
+    final List<HistoryStore.FieldStats> stats = store.dictionaries();
+    // ids are all distinct, and the message is never in a dictionary
+    assertEquals(1, stats.size());
+    final HistoryStore.FieldStats level = stats.get(0);
+    assertEquals("level", level.field);
+    assertEquals(3, level.values);
+    assertEquals(n - 3, level.uses);
+    // the length of the value per use, minus the values stored once (with
+    // their tag and length)
+    assertEquals((n / 3 - 1) * (4 + 4 + 5) - (6 + 6 + 7), level.saved);
+
+    // values read from the dictionary are the same instance
+    Object info = null;
+    int i = 0;
+    for (final BlockObject entry : store) {
+      final Map<String, Object> map = entry.asMap();
+      assertEquals(levels[i % 3], map.get("level"));
+      assertEquals("request " + i, map.get("id"));
+      if (i == 3) {
+        info = map.get("level");
+      } else if (i > 3 && i % 3 == 0) {
+        assertSame(info, map.get("level"));
+      }
+      i++;
+    }
+    assertTrue(store.report().contains("level: 3 values, " + (n - 3)
+        + " uses"));
+  }
+
+  @Test
+  public void lazy() {
+    final HistoryStore store = new HistoryStore(engine);
+    final LazyEntry line = new LazyEntry(engine, "1 apple");
+    line.put("n", 1);
+    line.put("word", "apple");
+    assertTrue(line.checkpath(new String[] { "entry", "word" }, 1));
+    assertFalse(line.checkpath(new String[] { "entry", "word", "x" }, 1));
+    assertEquals("apple", line.getpath(new String[] { "entry", "word" }, 1)
+        .asString());
+    store.add(line);
+    assertTrue(line.isLazy());
+    assertEquals(0, store.objects());
+
+    final BlockObject entry = store.iterator().next();
+    assertTrue(((LazyEntry) entry).isLazy());
+    assertEquals("apple", entry.get("word").asString());
+    // a script sees the fields in order
+    final BlockObject stringify = engine
+        .eval("function(e) { return JSON.stringify(e); }");
+    assertEquals("{\"message\":\"1 apple\",\"n\":1,\"word\":\"apple\"}",
+        stringify.call(entry).asString());
+    assertFalse(((LazyEntry) entry).isLazy());
+    entry.put("word", "pear");
+    assertEquals("pear", entry.asMap().get("word"));
+  }
+
+  @Test
+  public void fieldPath() {
+    final LazyEntry line = new LazyEntry(engine, "1 apple");
+    line.put("word", "apple");
+    line.put("fruit", engine.eval("({ name: 'apple', seeds: null })")
+        .internalObject());
+    final FieldPath word = new FieldPath("entry.word");
+    final FieldPath name = new FieldPath("entry.fruit.name");
+    final FieldPath seeds = new FieldPath("entry.fruit.seeds");
+    final FieldPath missing = new FieldPath("entry.word.x");
+    for (int i = 0; i < 2; i++) {
+      assertTrue(word.test(line));
+      assertEquals("apple", word.read(line));
+      assertTrue(name.test(line));
+      assertEquals("apple", name.read(line));
+      // a field set to null is defined
+      assertTrue(seeds.test(line));
+      assertFalse(missing.test(line));
+      assertNull(missing.read(line));
+      assertFalse(new FieldPath("entry").test(line));
+      // the same on the JS object
+      line.internalObject();
+      assertFalse(line.isLazy());
+    }
+  }
+
+  @Test
+  public void budget() {
+    assertEquals(512L << 20, HistoryStore.parseBudget("512m"));
+    assertEquals(2L << 30, HistoryStore.parseBudget("2G"));
+    assertEquals(100, HistoryStore.parseBudget("100"));
+    try {
+      HistoryStore.parseBudget("lots");
+      fail();
+    } catch (final CLException e) {
+      assertEquals("Invalid memory budget: lots", e.getMessage());
+    }
+  }
+}
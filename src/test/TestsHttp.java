@@ -0,0 +1,165 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import cloudlens.engine.CLException;
+import cloudlens.parser.FileReader;
+import cloudlens.parser.HttpRangeInputStream;
+
+// Remote sources against an in-process HTTP server.
+public class TestsHttp {
+  private static final Pattern range = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+  private HttpServer server;
+  private String base;
+  private byte[] log;
+  private final AtomicInteger requests = new AtomicInteger();
+  private volatile String etag = "\"v1\"";
+
+  @Before
+  public void setUp() throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      sb.append("2018-03-12 10:21:").append(i % 60).append(" request ")
+          .append(i).append('\n');
+    }
+    log = sb.toString().getBytes(StandardCharsets.UTF_8);
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(Executors.newFixedThreadPool(4));
+    // every third range request is cut in the middle
+    server.createContext("/ranged", e -> serve(e, true, true));
+    server.createContext("/plain", e -> serve(e, false, false));
+    server.createContext("/changing", e -> {
+      serve(e, true, false);
+      etag = "\"v2\"";
+    });
+    server.start();
+    base = "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private void serve(HttpExchange e, boolean ranges, boolean faults)
+      throws IOException {
+    final int n = requests.incrementAndGet();
+    if (ranges) {
+      e.getResponseHeaders().add("Accept-Ranges", "bytes");
+      e.getResponseHeaders().add("ETag", etag);
+    }
+    final String header = e.getRequestHeaders().getFirst("Range");
+    final String ifRange = e.getRequestHeaders().getFirst("If-Range");
+    final Matcher m = (header == null) ? null : range.matcher(header);
+    int start = 0;
+    int end = log.length - 1;
+    int code = 200;
+    if (ranges && m != null && m.matches()
+        && (ifRange == null || ifRange.equals(etag))) {
+      start = Integer.parseInt(m.group(1));
+      end = Math.min(end, Integer.parseInt(m.group(2)));
+      code = 206;
+      e.getResponseHeaders().add("Content-Range",
+          "bytes " + start + "-" + end + "/" + log.length);
+    }
+    final int length = end - start + 1;
+    if (e.getRequestMethod().equals("HEAD")) {
+      e.getResponseHeaders().add("Content-Length", "" + log.length);
+      e.sendResponseHeaders(code, -1);
+      e.close();
+      return;
+    }
+    e.sendResponseHeaders(code, length);
+    try (OutputStream out = e.getResponseBody()) {
+      if (faults && code == 206 && n % 3 == 0) {
+        out.write(log, start, length / 2);
+        out.flush();
+        // drop the connection
+        throw new IOException("fault");
+      }
+      out.write(log, start, length);
+    }
+  }
+
+  private byte[] readAll(InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[1000];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void ranged() throws IOException {
+    final InputStream in = HttpRangeInputStream.open(base + "/ranged", 4,
+        16 * 1024);
+    assertArrayEquals(log, readAll(in));
+    // HEAD, one request per chunk, and one more per fault
+    final int chunks = (log.length + 16 * 1024 - 1) / (16 * 1024);
+    assertTrue(requests.get() > 1 + chunks + chunks / 3);
+  }
+
+  @Test
+  public void plain() throws IOException {
+    assertArrayEquals(log,
+        readAll(HttpRangeInputStream.open(base + "/plain", 4, 16 * 1024)));
+  }
+
+  @Test(expected = CLException.class)
+  public void changed() throws IOException {
+    readAll(HttpRangeInputStream.open(base + "/changing", 2, 16 * 1024));
+  }
+
+  @Test
+  public void source() {
+    final List<String> lines = new ArrayList<>();
+    final Iterator<String> it = FileReader.fetchLines(base + "/ranged");
+    while (it.hasNext()) {
+      lines.add(it.next());
+    }
+    assertEquals(20000, lines.size());
+    assertEquals("2018-03-12 10:21:19 request 19999", lines.get(19999));
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cloudlens.cli.Main;
+import cloudlens.engine.CLBuilder;
+
+// Parsed-log cache: the entries after the first match rules are reused
+// across runs while the log and the rules do not change.
+public class TestsLogCache {
+  private Tester tester;
+  private Path dir;
+  private Path log;
+  private Path cache;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("cloudlens-cache-test");
+    log = dir.resolve("test.log");
+    cache = dir.resolve("cache");
+    write(log, "1 apple\n2 pear\nsome text\n3 plum\n");
+  }
+
+  @After
+  public void cleanUp() throws IOException {
+    for (final File file : dir.toFile().listFiles()) {
+      if (file.isDirectory()) {
+        for (final File f : file.listFiles()) {
+          f.delete();
+        }
+      }
+      file.delete();
+    }
+    dir.toFile().delete();
+  }
+
+  private static void write(Path path, String text) throws IOException {
+    Files.write(path, text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private String run(String lens) throws Exception {
+    final Path file = dir.resolve("test.lens");
+    write(file, lens);
+    tester = new Tester();
+    tester.setUpStreams();
+    try {
+      CLBuilder.reset();
+      Main.main(new String[] { "-cache", cache.toString(), "-log",
+          log.toString(), "-run", file.toString() });
+    } finally {
+      tester.cleanUpStreams();
+    }
+    assertEquals("", tester.errContent.toString());
+    return tester.outContent.toString();
+  }
+
+  private String runGood(String options, String log, String script,
+      Path cache) throws Exception {
+    tester = new Tester();
+    tester.setUpStreams();
+    try {
+      CLBuilder.reset();
+      Main.main(StringUtils.split(options + " -cache " + cache + " -log "
+          + log + " -run " + script));
+    } finally {
+      tester.cleanUpStreams();
+    }
+    return tester.outContent.toString().replaceAll("\\r\\n?", "\n");
+  }
+
+  private int cached() {
+    final String[] files = cache.toFile().list();
+    return (files == null) ? 0 : files.length;
+  }
+
+  @Test
+  public void reuse() throws Exception {
+    final String lens = "match (\"(?<n:int>\\d+) (?<word>\\w+)\")\n"
+        + "process { if (entry.n > 1) print(entry.word) }\n";
+    assertEquals("pear\nplum\n", run(lens));
+    assertEquals(1, cached());
+    // only the blocks after the match rules changed
+    assertEquals("2\n3\n",
+        run(lens.replace("print(entry.word)", "print(entry.n)")));
+    assertEquals(1, cached());
+
+    // new rules
+    assertEquals("pear\nplum\n", run(lens.replace("n:int", "n")));
+    assertEquals(2, cached());
+
+    // the log changed
+    Files.write(log, "4 fig\n".getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.APPEND);
+    assertEquals("pear\nplum\nfig\n", run(lens));
+    assertEquals(2, cached());
+  }
+
+  @Test
+  public void fingerprint() throws Exception {
+    final String lens = "match (\"(?<n:int>\\d+) (?<word>\\w+)\")\n"
+        + "process { print(entry.word) }\n";
+    assertEquals("apple\npear\nplum\n", run(lens));
+    // same size and modification time: the checksum of the last block
+    // tells the change
+    final FileTime time = Files.getLastModifiedTime(log);
+    write(log, "1 apple\n2 pear\nsome text\n3 lime\n");
+    Files.setLastModifiedTime(log, time);
+    assertEquals("apple\npear\nlime\n", run(lens));
+    assertEquals(1, cached());
+  }
+
+  @Test
+  public void history() throws Exception {
+    final String lens = "match (\"(?<n:int>\\d+) (?<word>\\w+)\")\n"
+        + "{ print(CL.log().filter(function(e) e.word).length) }\n"
+        + "process { print(entry.message) }\n";
+    final String out = "3\n1 apple\n2 pear\nsome text\n3 plum\n";
+    assertEquals(out, run(lens));
+    assertEquals(out, run(lens));
+    assertEquals(Arrays.asList(cache.toFile().list()).toString(), 1,
+        cached());
+  }
+
+  @Test
+  public void good() throws Exception {
+    for (final Object[] test : Tester.getTests("tests/good", ".lens")) {
+      final String options = (String) test[1];
+      final List<String> args = Arrays.asList(StringUtils.split(options));
+      // -cache reads whole text or jsonl log files
+      if (args.contains("-stream") || args.contains("json")) {
+        continue;
+      }
+      final String out = new String(
+          Files.readAllBytes(Paths.get((String) test[4])),
+          StandardCharsets.UTF_8).replaceAll("\\r\\n?", "\n");
+      final Path cache = dir.resolve("cache-" + test[0]);
+      assertEquals(test[0] + " (miss)", out,
+          runGood(options, (String) test[2], (String) test[3], cache));
+      // the profile of a hit does not count the cached match rules
+      if (!args.contains("-profile")) {
+        assertEquals(test[0] + " (hit)", out,
+            runGood(options, (String) test[2], (String) test[3], cache));
+      }
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import cloudlens.block.BlockObject;
+import cloudlens.block.LazyEntry;
+import cloudlens.engine.CLException;
+import cloudlens.engine.PipelineQueue;
+
+// Queues between pipeline stages: the consumer gets the entries of the
+// producer, then its error, and does not wait for a producer that is gone.
+public class TestsPipelineQueue {
+
+  private final BlockObject a = new LazyEntry(null, "a");
+  private final BlockObject b = new LazyEntry(null, "b");
+
+  private static BlockObject take(PipelineQueue queue) throws Exception {
+    final FutureTask<BlockObject> consumer = new FutureTask<>(queue::take);
+    new Thread(consumer).start();
+    return consumer.get(10, TimeUnit.SECONDS);
+  }
+
+  private Thread producer(PipelineQueue queue, Runnable last) {
+    final Thread thread = new Thread(() -> {
+      queue.put(a);
+      queue.put(b);
+      last.run();
+    });
+    queue.producer(thread);
+    thread.start();
+    return thread;
+  }
+
+  @Test
+  public void closed() throws Exception {
+    final PipelineQueue queue = new PipelineQueue(1);
+    producer(queue, queue::close);
+    assertSame(a, take(queue));
+    assertSame(b, take(queue));
+    assertNull(take(queue));
+  }
+
+  @Test
+  public void failed() throws Exception {
+    final PipelineQueue queue = new PipelineQueue(4);
+    producer(queue, () -> queue.fail(new CLException("stage error")))
+        .join();
+    assertSame(a, take(queue));
+    assertSame(b, take(queue));
+    try {
+      take(queue);
+      fail();
+    } catch (final ExecutionException e) {
+      assertEquals("stage error", e.getCause().getMessage());
+    }
+  }
+
+  @Test
+  public void dead() throws Exception {
+    final PipelineQueue queue = new PipelineQueue(4);
+    // neither closed nor failed
+    producer(queue, () -> {
+    });
+    assertSame(a, take(queue));
+    assertSame(b, take(queue));
+    try {
+      take(queue);
+      fail();
+    } catch (final ExecutionException e) {
+      assertEquals("Pipeline stage stopped unexpectedly.",
+          e.getCause().getMessage());
+    }
+  }
+}
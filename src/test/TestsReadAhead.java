@@ -0,0 +1,103 @@
+/*
+ *  This file is part of the CloudLens project.
+ *
+ * Copyright 2015-2018 IBM Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import cloudlens.engine.CLException;
+import cloudlens.parser.LineRingBuffer;
+
+// Read-ahead ring buffer: lines reach the consumer as they are read, and
+// the lines read before an error are not lost.
+public class TestsReadAhead {
+
+  // n lines, then the source blocks until released, then it throws
+  private static class Source implements Iterator<String> {
+    private final int n;
+    private final CountDownLatch release = new CountDownLatch(1);
+    private int i = 0;
+
+    Source(int n) {
+      this.n = n;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (i == n) {
+        try {
+          release.await();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        throw new CLException("read error");
+      }
+      return true;
+    }
+
+    @Override
+    public String next() {
+      return "line " + i++;
+    }
+  }
+
+  @Test
+  public void blocking() throws Exception {
+    final Source source = new Source(3);
+    final LineRingBuffer ring = new LineRingBuffer(source, 1024);
+    // the lines arrive although the source blocks before a batch is full
+    final FutureTask<Void> consumer = new FutureTask<>(() -> {
+      for (int i = 0; i < 3; i++) {
+        assertTrue(ring.hasNext());
+        assertEquals("line " + i, ring.next());
+      }
+      return null;
+    });
+    new Thread(consumer).start();
+    try {
+      consumer.get(10, TimeUnit.SECONDS);
+    } finally {
+      source.release.countDown();
+    }
+    source.release.countDown();
+  }
+
+  @Test
+  public void error() {
+    final Source source = new Source(5);
+    source.release.countDown();
+    final LineRingBuffer ring = new LineRingBuffer(source, 1024);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(ring.hasNext());
+      assertEquals("line " + i, ring.next());
+    }
+    try {
+      ring.hasNext();
+      fail();
+    } catch (final CLException e) {
+      assertEquals("read error", e.getMessage());
+    }
+  }
+}